@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Binary delta between two versions of an APK. Layout (big endian):
+ * <pre>
+ * int    magic
+ * int    format version
+ * string digest of the base APK
+ * string digest of the target APK
+ * ops, each one of:
+ *   byte COPY,   long offset, int length    bytes taken from the base APK
+ *   byte INSERT, int length, byte[length]   new bytes
+ *   byte END
+ * </pre>
+ * Strings are modified UTF-8 as written by DataOutputStream.writeUTF(). Digests are
+ * {@link ApkDigest} values.
+ */
+class ApkDelta {
+    static final int MAGIC = 0x41525044; // "ARPD"
+    static final int VERSION = 1;
+
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_INSERT = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the target APK of {@code delta} to {@code target}, reading from the stream only once.
+     * Fails if the delta was made for another base, or the result doesn't have the digest the
+     * delta promises. {@code delta} is not closed.
+     */
+    static String apply(File base, String baseDigest, InputStream delta, File target) throws IOException {
+        DataInputStream in = new DataInputStream(delta);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("unknown delta format");
+        }
+        String expectedBase = in.readUTF();
+        String expectedTarget = in.readUTF();
+        if (!expectedBase.equals(baseDigest)) {
+            throw new IOException("delta is for another base: " + expectedBase);
+        }
+
+        ApkDigest digest = new ApkDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(base, "r");
+             FileOutputStream out = new FileOutputStream(target)) {
+            int op;
+            while ((op = in.readByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > raf.length()) {
+                        throw new IOException("copy out of range: " + offset + "+" + length);
+                    }
+                    raf.seek(offset);
+                    while (length > 0) {
+                        int n = Math.min(length, buffer.length);
+                        raf.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        length -= n;
+                    }
+                } else if (op == OP_INSERT) {
+                    int length = in.readInt();
+                    while (length > 0) {
+                        int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                        if (n < 0) {
+                            throw new EOFException("truncated delta");
+                        }
+                        out.write(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        length -= n;
+                    }
+                } else {
+                    throw new IOException("unknown delta op: " + op);
+                }
+            }
+            out.getFD().sync();
+        }
+
+        String result = digest.digest();
+        if (!result.equals(expectedTarget)) {
+            throw new IOException("digest mismatch: " + result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * APK content digests: the SHA-256 of the SHA-256 digests of consecutive 1 MiB chunks, so that
+ * chunks can be hashed in parallel from memory-mapped reads and a stream can be hashed while it
+ * is being written.
+ */
+public class ApkDigest {
+    private static final String ALGORITHM = "SHA-256";
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MessageDigest mDigest = newMessageDigest();
+    private MessageDigest mChunkDigest = newMessageDigest();
+    private int mChunkLength;
+
+    /**
+     * Computes the digest of {@code file}, hashing its chunks on all cores.
+     */
+    public static String compute(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             final FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int count = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            final byte[][] chunkDigests = new byte[count][];
+
+            List<Callable<Void>> tasks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final long offset = (long) i * CHUNK_SIZE;
+                final long length = Math.min(CHUNK_SIZE, size - offset);
+                tasks.add(() -> {
+                    ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    MessageDigest md = newMessageDigest();
+                    md.update(chunk);
+                    chunkDigests[index] = md.digest();
+                    return null;
+                });
+            }
+            ParallelTasks.run(ForkJoinPool.commonPool(), tasks);
+
+            MessageDigest md = newMessageDigest();
+            for (byte[] chunkDigest : chunkDigests) {
+                md.update(chunkDigest);
+            }
+            return toHex(md.digest());
+        }
+    }
+
+    public static String compute(String text) {
+        MessageDigest md = newMessageDigest();
+        md.update(text.getBytes());
+        return toHex(md.digest());
+    }
+
+    /**
+     * Adds the next {@code length} bytes of a stream to the digest.
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, CHUNK_SIZE - mChunkLength);
+            mChunkDigest.update(bytes, offset, n);
+            mChunkLength += n;
+            offset += n;
+            length -= n;
+            if (mChunkLength == CHUNK_SIZE) {
+                mDigest.update(mChunkDigest.digest());
+                mChunkLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the digest of everything passed to {@link #update}, same as {@link #compute(File)}
+     * returns for a file with that content.
+     */
+    public String digest() {
+        if (mChunkLength > 0) {
+            mDigest.update(mChunkDigest.digest());
+            mChunkLength = 0;
+        }
+        return toHex(mDigest.digest());
+    }
+
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Android release.
+            throw new AssertionError(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
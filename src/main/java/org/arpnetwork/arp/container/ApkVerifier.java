@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Checks plugin APKs before their code is loaded: their content digest is computed and their
+ * signatures are verified by the platform's PackageParser, on the same parse that provides the
+ * package metadata. Verified APKs go into a trust cache, one entry per APK path holding its size,
+ * mtime and digest, so an unchanged APK is neither hashed nor verified again on later loads.
+ * <p>
+ * The entry also records the signer, which pins it: a later version at the same path must be
+ * signed by the same certificates until the APK is removed.
+ */
+public class ApkVerifier {
+    private static final String TAG = "ApkVerifier";
+
+    private static final String DIR_NAME = "trust";
+
+    private static final int MAGIC = 0x41525054; // "ARPT"
+    private static final int VERSION = 2;
+
+    private File mDir;
+
+    public ApkVerifier(Context context) {
+        mDir = context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the digest of {@code apkFile} if it verifies, or null.
+     */
+    public String verify(File apkFile) {
+        String trusted = getTrustedDigest(apkFile);
+        if (trusted != null) {
+            return trusted;
+        }
+
+        ParsedPackage parsed = verify(apkFile, null, new LoadTimings(null));
+        return parsed != null ? parsed.getDigest() : null;
+    }
+
+    /**
+     * Returns the digest {@code apkFile} was verified with, if it is unchanged since, or null.
+     */
+    String getTrustedDigest(File apkFile) {
+        Entry entry = read(getEntryFile(apkFile), apkFile);
+        return entry != null ? entry.digest : null;
+    }
+
+    /**
+     * Returns the signer recorded for {@code apkFile}, even if it changed since, or null if it
+     * was never verified.
+     */
+    String getSigner(File apkFile) {
+        Entry entry = read(getEntryFile(apkFile), apkFile);
+        return entry != null ? entry.signer : null;
+    }
+
+    /**
+     * Verifies {@code apkFile} regardless of the trust cache, and returns it parsed with its
+     * digest set, or null if it doesn't verify or its signer differs from the recorded one. The
+     * signatures are checked on the same parse that produces the package. {@code digest} is the
+     * APK's digest if the caller already has it.
+     */
+    ParsedPackage verify(File apkFile, String digest, LoadTimings timings) {
+        try {
+            if (digest == null) {
+                digest = ApkDigest.compute(apkFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "verify failed. path: " + apkFile + ", reason: " + e.getMessage());
+            return null;
+        }
+
+        ParsedPackage parsed = ParsedPackage.parseVerified(apkFile, timings);
+        if (parsed == null || parsed.getSigner() == null) {
+            Log.e(TAG, "verify failed. path: " + apkFile);
+            return null;
+        }
+        // A failed check keeps the entry, so the pin outlives any number of bad attempts.
+        if (!isSameSigner(getSigner(apkFile), parsed)) {
+            Log.e(TAG, "verify failed. path: " + apkFile + ", reason: signer changed");
+            return null;
+        }
+        parsed.setDigest(digest);
+
+        trust(apkFile, parsed);
+        return parsed;
+    }
+
+    /**
+     * Returns whether {@code parsed} may replace an APK signed by {@code signer}, which is null
+     * for an APK that was never verified.
+     */
+    static boolean isSameSigner(String signer, ParsedPackage parsed) {
+        return signer == null || signer.equals(parsed.getSigner());
+    }
+
+    /**
+     * Records {@code apkFile} as verified, for an APK whose content was verified under another
+     * path. {@code parsed} is that verified package, with its digest set.
+     */
+    void trust(File apkFile, ParsedPackage parsed) {
+        try {
+            write(getEntryFile(apkFile), apkFile, parsed.getSigner(), parsed.getDigest());
+        } catch (IOException e) {
+            Log.e(TAG, "write trust cache failed. reason: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the entry of {@code from} to {@code to}, after the APK itself was renamed.
+     */
+    void move(File from, File to) {
+        File entry = getEntryFile(from);
+        if (entry.exists() && !entry.renameTo(getEntryFile(to))) {
+            entry.delete();
+        }
+    }
+
+    public void remove(File apkFile) {
+        getEntryFile(apkFile).delete();
+    }
+
+    private File getEntryFile(File apkFile) {
+        return new File(mDir, ApkDigest.compute(apkFile.getAbsolutePath()));
+    }
+
+    // Returns null for a missing or unreadable entry, and an entry without a digest if the APK
+    // changed since it was verified.
+    private static Entry read(File entry, File apkFile) {
+        if (!entry.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(entry))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                String signer = in.readUTF();
+                boolean unchanged = in.readLong() == apkFile.length() &&
+                        in.readLong() == apkFile.lastModified();
+                return new Entry(signer, unchanged ? in.readUTF() : null);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read trust cache failed. reason: " + e.getMessage());
+        }
+
+        entry.delete();
+        return null;
+    }
+
+    private static void write(File entry, File apkFile, String signer, String digest) throws IOException {
+        File tmp = new File(entry.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(signer);
+            out.writeLong(apkFile.length());
+            out.writeLong(apkFile.lastModified());
+            out.writeUTF(digest);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(entry)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + entry);
+        }
+    }
+
+    private static class Entry {
+        final String signer;
+        final String digest;
+
+        Entry(String signer, String digest) {
+            this.signer = signer;
+            this.digest = digest;
+        }
+    }
+}
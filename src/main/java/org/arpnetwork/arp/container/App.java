@@ -16,81 +16,213 @@
 
 package org.arpnetwork.arp.container;
 
-import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
+import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.os.AsyncTask;
+import android.content.res.TypedArray;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import org.apache.commons.lang3.reflect.ConstructorUtils;
-import org.apache.commons.lang3.reflect.FieldUtils;
-import org.apache.commons.lang3.reflect.MethodUtils;
+import dalvik.system.DexClassLoader;
 
 import java.io.File;
-import java.lang.ref.WeakReference;
-import java.util.List;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class App {
     private static final String TAG = "App";
 
+    // Resources are kept this long after the last activity is gone, in case the user comes back.
+    private static final long IDLE_RELEASE_DELAY_MS = 30 * 1000;
+
+    private static final int[] WINDOW_ATTRS = {android.R.attr.windowBackground};
+
+    // Rough per-activity cost of PackageInfo, intent filters and the component index.
+    private static final long ACTIVITY_METADATA_BYTES = 1024;
+
     private Context mContext;
     private String mApkPath;
-    private File mOptimizedDirectory;
+    private String mLibrarySearchPath;
+    private ClassLoader mClassLoader;
+
+    private String mDigest;
+    private ParsedPackage mPackage;
+    private ParsedPackage mVerifiedPackage;
+
+    private AppResources mResources;
+    private PresentationCache mPresentationCache = new PresentationCache(this);
+
+    private CompletableFuture<App> mLoadFuture;
+    private LoadTimings mLoadTimings = new LoadTimings(this);
+    private volatile boolean mLoaded;
+    // Set by unload() while activities are alive, only touched on the main thread.
+    private boolean mUnloadPending;
+    private volatile boolean mPreparing;
+
+    private long mFootprint;
+    private long mMetadataFootprint;
+    private AtomicInteger mLiveActivities = new AtomicInteger();
 
-    private PackageInfo mPackageInfo;
-    private ActivityInfo mMainActivityInfo;
+    private volatile OnLoadProgressListener mProgressListener;
 
-    private AssetManager mAM;
-    private Resources mResources;
+    private CompletableFuture<App> mPrepareFuture;
+    private volatile Class<?> mLauncherClass;
 
-    private LoadTask mLoadTask;
-    private boolean mLoaded;
+    private Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Runnable mReleaseResources = this::releaseResources;
 
     public interface OnAppLoadedListener {
         void onAppLoaded(App app, boolean loaded);
     }
 
+    public interface OnLoadProgressListener {
+        /**
+         * Called on the main thread after each stage of a load that hasn't been cancelled.
+         */
+        void onLoadProgress(App app, AppLoader.Stage stage, int completed, int total);
+    }
+
     public App(Context context, String apkPath) {
         mContext = context;
         mApkPath = apkPath;
     }
 
-    public void load(OnAppLoadedListener listener) {
-        if (mLoaded || mLoadTask != null) {
+    public void load(final OnAppLoadedListener listener) {
+        load().whenComplete((app, error) -> {
+            if (!(error instanceof CancellationException)) {
+                listener.onAppLoaded(app != null ? app : App.this, error == null);
+            }
+        });
+    }
+
+    public CompletableFuture<App> load() {
+        if (mLoaded || mLoadFuture != null) {
             throw new IllegalStateException();
         }
 
-        mLoadTask = new LoadTask(this, listener);
-        mLoadTask.execute();
+        mLoadTimings = new LoadTimings(this);
+        mLoadFuture = AppLoader.getInstance().load(this);
+        mLoadFuture.whenComplete((app, error) -> mLoadFuture = null);
+        return mLoadFuture;
     }
 
+    /**
+     * Releases what the app holds: its routes, class loader, resources, themes and labels. The
+     * framework hooks are removed with the last app. While activities of the app are alive, the
+     * system may recreate them at any time, so the teardown waits until the last one is destroyed,
+     * and until a running {@link #prepare()} is done with the resources.
+     */
     public void unload() {
-        if (mLoaded) {
-            AppManager.remove(this);
-            mLoaded = false;
+        if (!mLoaded) {
+            return;
+        }
+
+        if (isInUse()) {
+            mUnloadPending = true;
+            Log.i(TAG, "unload deferred until the app is no longer in use. package: " + getPackageName());
+            return;
         }
+        tearDown();
     }
 
+    private void tearDown() {
+        long before = mFootprint;
+
+        mUnloadPending = false;
+        AppManager.remove(this);
+        mMainHandler.removeCallbacks(mReleaseResources);
+        mPresentationCache.clear();
+        AppResources resources = mResources;
+        mResources = null;
+        if (resources != null) {
+            resources.release();
+        }
+        // Once no activity references it, the class loader and all plugin classes can be collected.
+        releaseClassLoader();
+        mLoaded = false;
+
+        if (AppManager.isEmpty()) {
+            Hook.uninstall();
+        }
+
+        // The parsed package stays with this object, so that it can still be identified and reloaded.
+        long after = mMetadataFootprint;
+        Log.i(TAG, "app unloaded. package: " + getPackageName() + ", footprint: " + before + " -> " + after);
+        AppManager.onAppUnloaded(this, before, after);
+    }
+
+    public void setOnLoadProgressListener(OnLoadProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Stops a load in progress at its next stage boundary and undoes what it already did, or
+     * unloads the app if it is already loaded.
+     */
     public void cancel() {
-        if (mLoadTask != null) {
-            mLoadTask.cancel(true);
-            mLoadTask = null;
+        if (mLoadFuture != null) {
+            mLoadFuture.cancel(true);
+            mLoadFuture = null;
         } else if (mLoaded) {
             unload();
         }
     }
 
+    /**
+     * Warms up the launcher activity on a background thread, so that a following
+     * {@link #start(Context)} mostly just posts the intent: its class is loaded and initialized
+     * along with the types its members refer to, and its theme, window background and label
+     * are resolved. The app must be loaded. Must be called on the main thread.
+     */
+    public CompletableFuture<App> prepare() {
+        if (!mLoaded) {
+            throw new IllegalStateException();
+        }
+
+        if (mPrepareFuture == null) {
+            // The background work reads the resources, nothing may release them meanwhile.
+            mPreparing = true;
+            mPrepareFuture = CompletableFuture.supplyAsync(() -> {
+                prepareLauncher();
+                return App.this;
+            }, AppLoader.getInstance().getExecutor());
+            mPrepareFuture.whenComplete((app, error) -> mMainHandler.post(() -> {
+                mPreparing = false;
+                onIdle();
+            }));
+        }
+        return mPrepareFuture;
+    }
+
+    /**
+     * Starts the app's launcher activity. The app must be loaded; it may have been unloaded in
+     * the meantime, also by {@link AppManager} to stay within its memory budget, in which case
+     * it has to be loaded again first.
+     */
     public void start(Context context) {
+        if (!mLoaded) {
+            throw new IllegalStateException();
+        }
+
         try {
-            Class<?> clazz = Class.forName(mMainActivityInfo.name);
+            Class<?> clazz = mLauncherClass;
+            if (clazz == null) {
+                clazz = mClassLoader.loadClass(mPackage.getLauncherActivity().name);
+            }
             Intent intent = new Intent(context, clazz);
             context.startActivity(intent);
         } catch (ClassNotFoundException e) {
@@ -102,23 +234,142 @@ public class App {
     }
 
     public File getOptimizedDirectory() {
-        return mOptimizedDirectory;
+        return DexOptimizer.getOatDirectory(new File(mApkPath));
+    }
+
+    /**
+     * Returns where the app's class loader finds native libraries, or null if it has none.
+     */
+    public String getNativeLibrarySearchPath() {
+        return mLibrarySearchPath;
+    }
+
+    public ClassLoader getClassLoader() {
+        return mClassLoader;
     }
 
     public String getPackageName() {
-        return mPackageInfo != null ? mPackageInfo.packageName : null;
+        return mPackage != null ? mPackage.getPackageName() : null;
+    }
+
+    public PackageInfo getPackageInfo() {
+        return mPackage != null ? mPackage.getPackageInfo() : null;
+    }
+
+    public ParsedPackage getParsedPackage() {
+        return mPackage;
+    }
+
+    /**
+     * Test only. Gives the app its metadata without going through the load pipeline, for
+     * synthetic apps that have no APK behind them.
+     */
+    void setParsedPackage(ParsedPackage parsed) {
+        mPackage = parsed;
     }
 
     public AssetManager getAssets() {
-        return mAM;
+        Resources resources = getResources();
+        return resources != null ? resources.getAssets() : null;
     }
 
+    /**
+     * Returns the plugin's resources for the host's current configuration.
+     */
     public Resources getResources() {
-        return mResources;
+        return getResources(mContext.getResources().getConfiguration());
+    }
+
+    /**
+     * Returns the plugin's resources for {@code config}, created on first use and shared with
+     * every other caller asking for an equal configuration.
+     */
+    public Resources getResources(Configuration config) {
+        AppResources resources = mResources;
+        return resources != null ? resources.get(config) : null;
+    }
+
+    /**
+     * Returns the estimated memory held by this app while loaded: dex code, the resource table and
+     * parsed metadata.
+     */
+    public long getMemoryFootprint() {
+        return mLoaded ? mFootprint : 0;
+    }
+
+    public boolean hasLiveActivities() {
+        return mLiveActivities.get() > 0;
+    }
+
+    Context getContext() {
+        return mContext;
+    }
+
+    void onActivityCreated() {
+        mLiveActivities.incrementAndGet();
+        mMainHandler.removeCallbacks(mReleaseResources);
+    }
+
+    void onActivityDestroyed() {
+        if (mLiveActivities.decrementAndGet() == 0) {
+            onIdle();
+        }
+    }
+
+    // Live activities and a running prepare() use the resources.
+    private boolean isInUse() {
+        return hasLiveActivities() || mPreparing;
+    }
+
+    // Called on the main thread whenever one of the uses ends.
+    private void onIdle() {
+        if (!mLoaded || isInUse()) {
+            return;
+        }
+
+        if (mUnloadPending) {
+            tearDown();
+        } else {
+            mMainHandler.postDelayed(mReleaseResources, IDLE_RELEASE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Drops what is rebuilt on next use, more of it the higher {@code level} is: themes and
+     * labels, then resources, then component indexes. Apps in use by live activities or by a
+     * running {@link #prepare()} are left alone.
+     */
+    void trimMemory(int level) {
+        if (!mLoaded || isInUse()) {
+            return;
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mPresentationCache.clear();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mMainHandler.removeCallbacks(mReleaseResources);
+            releaseResources();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mPackage.trimIndexes();
+        }
+    }
+
+    OnLoadProgressListener getOnLoadProgressListener() {
+        return mProgressListener;
+    }
+
+    public LoadTimings getLoadTimings() {
+        return mLoadTimings;
+    }
+
+    PresentationCache getPresentationCache() {
+        return mPresentationCache;
     }
 
     public boolean isLoading() {
-        return mLoadTask != null;
+        return mLoadFuture != null;
     }
 
     public boolean isLoaded() {
@@ -126,22 +377,31 @@ public class App {
     }
 
     public ActivityInfo getActivityInfo(String className) {
-        for (ActivityInfo info : mPackageInfo.activities) {
-            if (info.name.equals(className)) {
-                return info;
-            }
+        return mPackage != null ? mPackage.getActivityInfo(className) : null;
+    }
+
+    public ActivityInfo getActivityInfo(ComponentName componentName) {
+        // Plugin components are launched with either the host or the plugin package name.
+        String pkg = componentName.getPackageName();
+        if (!pkg.equals(getPackageName()) && !pkg.equals(mContext.getPackageName())) {
+            return null;
         }
-        return null;
+        return getActivityInfo(componentName.getClassName());
     }
 
     public CharSequence loadLabel(ComponentInfo info) {
+        return loadLabel(info, mContext.getResources().getConfiguration());
+    }
+
+    public CharSequence loadLabel(ComponentInfo info, Configuration config) {
         if (info.nonLocalizedLabel != null) {
             return info.nonLocalizedLabel;
         }
+        Resources resources = getResources(config);
         ApplicationInfo ai = info.applicationInfo;
         CharSequence label;
         if (info.labelRes != 0) {
-            label = mResources.getText(info.labelRes);
+            label = resources.getText(info.labelRes);
             if (label != null) {
                 return label;
             }
@@ -150,7 +410,7 @@ public class App {
             return ai.nonLocalizedLabel;
         }
         if (ai.labelRes != 0) {
-            label = mResources.getText(ai.labelRes);
+            label = resources.getText(ai.labelRes);
             if (label != null) {
                 return label;
             }
@@ -158,93 +418,174 @@ public class App {
         return info.name;
     }
 
-    private void onAppLoaded() {
-        mLoadTask = null;
+    void onAppLoaded() {
+        // An unload of the last other app may have removed the hooks after our hooks stage ran.
+        Hook.init(mContext, mLoadTimings);
         AppManager.put(this);
         mLoaded = true;
+    }
 
-        mOptimizedDirectory = mContext.getDir(getPackageName(), Context.MODE_PRIVATE);
+    boolean verifyPackage() {
+        // A staged update takes effect here, before anything reads the APK.
+        new AppUpdater(mContext).applyPending(new File(mApkPath));
+
+        long begin = mLoadTimings.begin(LoadTimings.Stage.VERIFY_PACKAGE);
+        File apkFile = new File(mApkPath);
+        ApkVerifier verifier = new ApkVerifier(mContext);
+        mDigest = verifier.getTrustedDigest(apkFile);
+        if (mDigest == null) {
+            // Verifying parses the APK, the parse stage takes that package instead of parsing again.
+            mVerifiedPackage = verifier.verify(apkFile, null, mLoadTimings);
+            mDigest = mVerifiedPackage != null ? mVerifiedPackage.getDigest() : null;
+        }
+        mLoadTimings.end(LoadTimings.Stage.VERIFY_PACKAGE, begin);
+        return mDigest != null;
     }
 
-    private boolean load() {
-        return loadPackageInfo() && loadResources() && Hook.init(mContext, this);
+    void clearDigest() {
+        mDigest = null;
+        mVerifiedPackage = null;
     }
 
-    private boolean loadPackageInfo() {
-        PackageManager pm = mContext.getPackageManager();
-        mPackageInfo = pm.getPackageArchiveInfo(mApkPath, PackageManager.GET_ACTIVITIES);
-        mMainActivityInfo = getMainActivity();
+    boolean loadPackageInfo() {
+        File apkFile = new File(mApkPath);
+        MetadataCache metadataCache = new MetadataCache(mContext);
+        if (mVerifiedPackage != null) {
+            mPackage = mVerifiedPackage;
+            mVerifiedPackage = null;
+            try {
+                metadataCache.put(apkFile, mPackage);
+            } catch (IOException e) {
+                Log.e(TAG, "write metadata failed. reason: " + e.getMessage());
+            }
+        } else {
+            mPackage = metadataCache.load(apkFile, mDigest, mLoadTimings);
+        }
+        if (mPackage == null || mPackage.getLauncherActivity() == null) {
+            return false;
+        }
+
+        mFootprint = estimateFootprint();
+        mResources = new AppResources(mContext, mApkPath, mLoadTimings);
+        return true;
+    }
 
-        return mPackageInfo != null && mMainActivityInfo != null;
+    void clearPackageInfo() {
+        mPackage = null;
+        mResources = null;
+        mFootprint = 0;
+        mMetadataFootprint = 0;
     }
 
-    private boolean loadResources() {
+    boolean prepareNativeLibraries() {
+        long begin = mLoadTimings.begin(LoadTimings.Stage.PREPARE_NATIVE_LIBRARIES);
         try {
-            mAM = AssetManager.class.newInstance();
-            MethodUtils.invokeMethod(mAM, "addAssetPath", mApkPath);
-            Resources res = mContext.getResources();
-            mResources = new Resources(mAM, res.getDisplayMetrics(), res.getConfiguration());
-        } catch (ReflectiveOperationException e) {
-            Log.e(TAG, "load resources failed. reason: " + e.getMessage());
+            NativeLibraries libraries = new NativeLibraries(mContext, AppLoader.getInstance().getExecutor());
+            mLibrarySearchPath = libraries.getSearchPath(new File(mApkPath), mPackage);
+        } catch (IOException e) {
+            Log.e(TAG, "prepare native libraries failed. reason: " + e.getMessage());
 
             return false;
+        } finally {
+            mLoadTimings.end(LoadTimings.Stage.PREPARE_NATIVE_LIBRARIES, begin);
         }
 
         return true;
     }
 
-    private ActivityInfo getMainActivity() {
-        try {
-            @SuppressLint("PrivateApi")
-            Class<?> clazz = Class.forName("android.content.pm.PackageParser");
-            Object packageParser = ConstructorUtils.invokeConstructor(clazz);
-            Object packageObj = MethodUtils.invokeMethod(packageParser, "parsePackage", new Object[]{new File(mApkPath), 0});
-            List activities = (List) FieldUtils.readField(packageObj, "activities");
-            for (Object data : activities) {
-                List<IntentFilter> filters = (List<IntentFilter>) FieldUtils.readField(data, "intents");
-                for (IntentFilter filter : filters) {
-                    for (int i = 0; i < filter.countActions(); i++) {
-                        if (filter.getAction(i).equals(Intent.ACTION_MAIN) &&
-                                filter.getCategory(i).equals(Intent.CATEGORY_LAUNCHER)) {
-                            return (ActivityInfo) FieldUtils.readField(data, "info");
-                        }
-                    }
-                }
-            }
-        } catch (ReflectiveOperationException e) {
-            Log.e(TAG, "find main activity failed. reason: " + e.getMessage());
-        }
+    void clearNativeLibraries() {
+        mLibrarySearchPath = null;
+    }
 
-        return null;
+    boolean createClassLoader() {
+        long begin = mLoadTimings.begin(LoadTimings.Stage.CREATE_CLASS_LOADER);
+        // The runtime ignores optimizedDirectory and uses the output next to the APK.
+        mClassLoader = new DexClassLoader(mApkPath, null, mLibrarySearchPath, mContext.getClassLoader());
+        mLoadTimings.end(LoadTimings.Stage.CREATE_CLASS_LOADER, begin);
+        return true;
     }
 
-    private static class LoadTask extends AsyncTask<Void, Void, Boolean> {
-        private WeakReference<App> mApp;
-        private OnAppLoadedListener mListener;
+    void releaseClassLoader() {
+        mClassLoader = null;
+        mLauncherClass = null;
+        mPrepareFuture = null;
+    }
 
-        public LoadTask(App app, OnAppLoadedListener listener) {
-            mApp = new WeakReference<>(app);
-            mListener = listener;
+    boolean installHooks() {
+        return Hook.init(mContext, mLoadTimings);
+    }
+
+    /**
+     * Removes the hooks if no app is registered. Runs on the main thread, where apps are
+     * registered, so it can't race with a load that is just completing.
+     */
+    void uninstallHooks() {
+        mMainHandler.post(() -> {
+            if (AppManager.isEmpty()) {
+                Hook.uninstall();
+            }
+        });
+    }
+
+    private void prepareLauncher() {
+        ActivityInfo launcher = mPackage.getLauncherActivity();
+        ClassLoader classLoader = mClassLoader;
+        if (launcher == null || classLoader == null) {
+            return;
         }
 
-        @Override
-        protected Boolean doInBackground(Void... voids) {
-            App app = mApp.get();
-            return app != null && app.load();
+        try {
+            Class<?> clazz = Class.forName(launcher.name, true, classLoader);
+            // Resolving the member signatures loads the classes the activity uses directly.
+            clazz.getDeclaredFields();
+            clazz.getDeclaredMethods();
+            mLauncherClass = clazz;
+        } catch (ClassNotFoundException | LinkageError e) {
+            Log.e(TAG, "prepare launcher class failed. reason: " + e.getMessage());
         }
 
-        @Override
-        protected void onPostExecute(Boolean aBoolean) {
-            if (!isCancelled()) {
-                App app = mApp.get();
-                if (app != null) {
-                    if (aBoolean) {
-                        app.onAppLoaded();
-                    }
+        // Same theme and label the activity will get in Hook.patchResources().
+        Configuration config = mContext.getResources().getConfiguration();
+        Resources.Theme theme = mPresentationCache.newTheme(launcher.getThemeResource(),
+                mContext.getApplicationContext().getTheme(), config);
+        TypedArray a = theme.obtainStyledAttributes(WINDOW_ATTRS);
+        try {
+            a.getDrawable(0);
+        } finally {
+            a.recycle();
+        }
+        mPresentationCache.getLabel(launcher, config);
+
+        Log.i(TAG, "launcher prepared. package: " + getPackageName());
+    }
+
+    private void releaseResources() {
+        AppResources resources = mResources;
+        if (resources != null && !isInUse() && !resources.isEmpty()) {
+            // Themes and labels hold on to the instances that are about to be closed.
+            mPresentationCache.clear();
+            resources.release();
+            Log.i(TAG, "resources released. package: " + getPackageName());
+        }
+    }
 
-                    mListener.onAppLoaded(app, aBoolean);
+    private long estimateFootprint() {
+        mMetadataFootprint = mPackage.getActivities().length * ACTIVITY_METADATA_BYTES;
+        long footprint = mMetadataFootprint;
+        // Only the central directory is read here.
+        try (ZipFile zip = new ZipFile(mApkPath)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.equals("resources.arsc") || (name.startsWith("classes") && name.endsWith(".dex"))) {
+                    footprint += entry.getSize();
                 }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "estimate footprint failed. reason: " + e.getMessage());
+            footprint += new File(mApkPath).length();
         }
+        return footprint;
     }
 }
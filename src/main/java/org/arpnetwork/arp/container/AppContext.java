@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+/**
+ * Base context of plugin activities. Classes looked up through the context, e.g. by
+ * LayoutInflater for custom views, must come from the plugin's own class loader.
+ */
+class AppContext extends ContextWrapper {
+    private ClassLoader mClassLoader;
+
+    AppContext(Context base, ClassLoader classLoader) {
+        super(base);
+        mClassLoader = classLoader;
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return mClassLoader;
+    }
+}
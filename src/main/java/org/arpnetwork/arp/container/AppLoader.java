@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads plugins on a dedicated, bounded thread pool. A load runs as a sequence of
+ * {@link Stage}s that check for cancellation in between, concurrent requests for the same APK
+ * share one load, and the returned futures complete on the main thread once the app is
+ * registered with {@link AppManager}.
+ */
+public class AppLoader {
+    private static final String TAG = "AppLoader";
+
+    private static final int POOL_SIZE = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile AppLoader sInstance;
+
+    private ThreadPoolExecutor mExecutor;
+    private Executor mMainExecutor;
+    private ConcurrentHashMap<String, SharedLoad> mPending = new ConcurrentHashMap<>();
+    // Only touched on the main thread.
+    private HashMap<String, CompletableFuture<?>> mRunning = new HashMap<>();
+
+    public static AppLoader getInstance() {
+        if (sInstance == null) {
+            synchronized (AppLoader.class) {
+                if (sInstance == null) {
+                    sInstance = new AppLoader();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private AppLoader() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LoaderThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        mMainExecutor = mainHandler::post;
+    }
+
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * The stages of a load, in the order they run. Each one can undo its own work, which
+     * happens in reverse order when a later stage fails or the load is cancelled.
+     */
+    public enum Stage {
+        VERIFY_PACKAGE {
+            @Override
+            boolean run(App app) {
+                return app.verifyPackage();
+            }
+
+            @Override
+            void rollback(App app) {
+                app.clearDigest();
+            }
+        },
+        PARSE_PACKAGE {
+            @Override
+            boolean run(App app) {
+                return app.loadPackageInfo();
+            }
+
+            @Override
+            void rollback(App app) {
+                app.clearPackageInfo();
+            }
+        },
+        PREPARE_NATIVE_LIBRARIES {
+            @Override
+            boolean run(App app) {
+                return app.prepareNativeLibraries();
+            }
+
+            @Override
+            void rollback(App app) {
+                // Extracted libraries stay cached for the next load of the same APK.
+                app.clearNativeLibraries();
+            }
+        },
+        CREATE_CLASS_LOADER {
+            @Override
+            boolean run(App app) {
+                return app.createClassLoader();
+            }
+
+            @Override
+            void rollback(App app) {
+                app.releaseClassLoader();
+            }
+        },
+        INSTALL_HOOKS {
+            @Override
+            boolean run(App app) {
+                return app.installHooks();
+            }
+
+            @Override
+            void rollback(App app) {
+                app.uninstallHooks();
+            }
+        };
+
+        abstract boolean run(App app);
+
+        abstract void rollback(App app);
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Loads {@code app}. If a load of the same APK is already in flight, the caller joins it
+     * instead of starting a second one, and gets the App of that load. The future fails with
+     * {@link AppLoadException} when a stage fails. Cancelling the future only detaches this
+     * caller; once every caller of a load has cancelled, the load stops at the next stage
+     * boundary and undoes the stages that already ran. Must be called on the main thread.
+     */
+    public CompletableFuture<App> load(final App app) {
+        final String key = new File(app.getApkPath()).getAbsolutePath();
+        SharedLoad shared = mPending.get(key);
+        if (shared == null) {
+            shared = new SharedLoad();
+            mPending.put(key, shared);
+            start(app, key, shared);
+        }
+        return shared.join();
+    }
+
+    private void start(final App app, final String key, final SharedLoad shared) {
+        final CompletableFuture<App> future = shared.future;
+        // Frees the key as soon as every caller has cancelled, while the stages wind down.
+        future.whenComplete((loaded, error) -> mPending.remove(key, shared));
+
+        final LoadTimings timings = app.getLoadTimings();
+        final long begin = SystemClock.elapsedRealtimeNanos();
+
+        // A cancelled load of the same APK may still be rolling back, don't overlap with it.
+        CompletableFuture<?> previous = mRunning.get(key);
+        CompletableFuture<Void> ready = previous != null
+                ? previous.handle((result, error) -> null)
+                : CompletableFuture.completedFuture(null);
+        final CompletableFuture<Integer> stages = ready.thenApplyAsync(
+                (ignored) -> runStages(app, key, future), mExecutor);
+        mRunning.put(key, stages);
+
+        stages.whenCompleteAsync((completed, error) -> {
+            mRunning.remove(key, stages);
+            if (error != null) {
+                if (!future.isCancelled()) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    future.completeExceptionally(new AppLoadException(cause.getMessage(), cause));
+                }
+            } else if (future.isCancelled()) {
+                // Cancelled after the last stage, before the app was registered.
+                rollback(app, completed);
+            } else {
+                app.onAppLoaded();
+                timings.record(LoadTimings.Stage.TOTAL, SystemClock.elapsedRealtimeNanos() - begin);
+                Log.i(TAG, "app loaded. package: " + app.getPackageName() + ", " + timings);
+                future.complete(app);
+            }
+        }, mMainExecutor);
+    }
+
+    private int runStages(App app, String key, CompletableFuture<App> future) {
+        int completed = 0;
+        try {
+            for (Stage stage : STAGES) {
+                if (future.isCancelled()) {
+                    Log.i(TAG, "load cancelled before " + stage + ". path: " + key);
+                    throw new CancellationException();
+                }
+                if (!stage.run(app)) {
+                    throw new LoadFailure(stage + " failed: " + key);
+                }
+                completed++;
+                notifyProgress(app, future, stage, completed);
+            }
+        } catch (Throwable e) {
+            // Errors from a stage (LinkageError, OutOfMemoryError) must not leave it half loaded.
+            rollback(app, completed);
+            throw e;
+        }
+        return completed;
+    }
+
+    private void rollback(App app, int completed) {
+        for (int i = completed - 1; i >= 0; i--) {
+            STAGES[i].rollback(app);
+        }
+    }
+
+    private void notifyProgress(final App app, final CompletableFuture<App> future, final Stage stage,
+            final int completed) {
+        final App.OnLoadProgressListener listener = app.getOnLoadProgressListener();
+        if (listener != null) {
+            mMainExecutor.execute(() -> {
+                if (!future.isCancelled()) {
+                    listener.onLoadProgress(app, stage, completed, STAGES.length);
+                }
+            });
+        }
+    }
+
+    /**
+     * One load that any number of callers wait for. Each caller gets its own future, and the
+     * load itself is only cancelled when all of them are.
+     */
+    private static class SharedLoad {
+        final CompletableFuture<App> future = new CompletableFuture<>();
+        final AtomicInteger callers = new AtomicInteger();
+
+        CompletableFuture<App> join() {
+            callers.incrementAndGet();
+            final CompletableFuture<App> caller = new CompletableFuture<>();
+            future.whenComplete((app, error) -> {
+                if (error != null) {
+                    caller.completeExceptionally(error);
+                } else {
+                    caller.complete(app);
+                }
+            });
+            caller.whenComplete((app, error) -> {
+                if (caller.isCancelled() && callers.decrementAndGet() == 0) {
+                    future.cancel(true);
+                }
+            });
+            return caller;
+        }
+    }
+
+    // Unchecked carrier for stage failures inside the future chain.
+    private static class LoadFailure extends RuntimeException {
+        LoadFailure(String message) {
+            super(message);
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "AppLoader #" + mCount.incrementAndGet());
+        }
+    }
+}
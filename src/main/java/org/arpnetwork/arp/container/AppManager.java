@@ -16,24 +16,371 @@
 
 package org.arpnetwork.arp.container;
 
-import java.util.LinkedHashMap;
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 public class AppManager {
-    private static LinkedHashMap<String, App> sApps = new LinkedHashMap<>();
+    private static final String TAG = "AppManager";
+
+    private static ConcurrentHashMap<String, Entry> sApps = new ConcurrentHashMap<>();
+    // Routing table: activity class name -> owning app.
+    private static ConcurrentHashMap<String, Entry> sActivities = new ConcurrentHashMap<>();
+    private static CopyOnWriteArrayList<OnAppEvictedListener> sEvictedListeners = new CopyOnWriteArrayList<>();
+    private static CopyOnWriteArrayList<OnAppUnloadedListener> sUnloadedListeners = new CopyOnWriteArrayList<>();
+    private static volatile long sMemoryBudget = Long.MAX_VALUE;
+    private static ActivityTracker sActivityTracker;
+    private static MemoryTrimmer sMemoryTrimmer;
+
+    public interface OnAppEvictedListener {
+        void onAppEvicted(App app, long footprint);
+    }
+
+    public interface OnAppUnloadedListener {
+        /**
+         * Called after {@code app} was unloaded, with its estimated footprint before the unload
+         * and what its parsed package still holds afterwards.
+         */
+        void onAppUnloaded(App app, long footprintBefore, long footprintAfter);
+    }
+
+    /**
+     * Loads all {@code apkPaths} concurrently. The future completes once every load has finished,
+     * with one App per path; check {@link App#isLoaded()} for the outcome of each.
+     */
+    public static CompletableFuture<List<App>> loadAll(Context context, Collection<String> apkPaths) {
+        final List<CompletableFuture<App>> futures = new ArrayList<>(apkPaths.size());
+        for (String apkPath : apkPaths) {
+            final App app = new App(context, apkPath);
+            futures.add(app.load().handle((loaded, error) -> loaded != null ? loaded : app));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<App> apps = new ArrayList<>(futures.size());
+            for (CompletableFuture<App> future : futures) {
+                apps.add(future.join());
+            }
+            return apps;
+        });
+    }
+
+    /**
+     * Runs dex optimization for {@code apkPaths} in the background, ahead of their first load.
+     */
+    public static CompletableFuture<Void> prewarm(Context context, Collection<String> apkPaths) {
+        final DexOptimizer optimizer = new DexOptimizer(context);
+        Executor executor = AppLoader.getInstance().getExecutor();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(apkPaths.size());
+        for (final String apkPath : apkPaths) {
+            futures.add(CompletableFuture.supplyAsync(() -> optimizer.prewarm(new File(apkPath)), executor));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
 
     public static void put(App app) {
-        sApps.put(app.getPackageName(), app);
+        registerCallbacks(app.getContext());
+
+        Entry entry = new Entry(app);
+        Entry old = sApps.put(app.getPackageName(), entry);
+        if (old != null) {
+            removeRoutes(old);
+        }
+        for (ActivityInfo info : app.getParsedPackage().getActivities()) {
+            sActivities.put(info.name, entry);
+        }
+
+        trimToBudget(app);
     }
 
     public static App get(String packageName) {
-        return sApps.get(packageName);
+        Entry entry = sApps.get(packageName);
+        return entry != null ? entry.touch() : null;
+    }
+
+    public static App getByActivity(String className) {
+        Entry entry = sActivities.get(className);
+        return entry != null ? entry.touch() : null;
+    }
+
+    /**
+     * Returns the app that owns {@code className}: a listed activity, or any class under the
+     * app's package name.
+     */
+    public static App getByClassName(String className) {
+        Entry entry = sActivities.get(className);
+        if (entry == null) {
+            // Walk the enclosing packages, longest first: a.b.c.Foo -> a.b.c -> a.b -> a
+            int end = className.lastIndexOf('.');
+            while (entry == null && end > 0) {
+                entry = sApps.get(className.substring(0, end));
+                end = className.lastIndexOf('.', end - 1);
+            }
+        }
+        return entry != null ? entry.touch() : null;
+    }
+
+    public static App getByActivity(ComponentName componentName) {
+        Entry entry = sActivities.get(componentName.getClassName());
+        if (entry != null && entry.app.getActivityInfo(componentName) != null) {
+            return entry.touch();
+        }
+        return null;
+    }
+
+    /**
+     * Resolves {@code intent} against the activities of the registered apps, without asking the
+     * system. Returns an empty list when no app has a matching activity.
+     */
+    public static List<ResolveInfo> queryIntentActivities(Intent intent, String resolvedType, int flags) {
+        ComponentName component = intent.getComponent();
+        if (component != null) {
+            App app = getByActivity(component);
+            ActivityInfo info = app != null ? app.getActivityInfo(component) : null;
+            if (info == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(IntentIndex.newResolveInfo(info, null, 0, flags));
+        }
+
+        String packageName = intent.getPackage();
+        if (packageName != null) {
+            App app = get(packageName);
+            if (app == null) {
+                return Collections.emptyList();
+            }
+            return app.getParsedPackage().getIntentIndex().query(intent, resolvedType, flags);
+        }
+
+        List<ResolveInfo> results = new ArrayList<>();
+        for (Entry entry : sApps.values()) {
+            List<ResolveInfo> matches = entry.app.getParsedPackage().getIntentIndex().query(intent, resolvedType, flags);
+            if (!matches.isEmpty()) {
+                entry.touch();
+                results.addAll(matches);
+            }
+        }
+        Collections.sort(results, IntentIndex.BY_PRIORITY);
+        return results;
     }
 
     public static void remove(App app) {
-        remove(app.getPackageName());
+        Entry entry = sApps.get(app.getPackageName());
+        if (entry != null && entry.app == app && sApps.remove(app.getPackageName(), entry)) {
+            removeRoutes(entry);
+        }
     }
 
     public static void remove(String packageName) {
-        sApps.remove(packageName);
+        Entry entry = sApps.remove(packageName);
+        if (entry != null) {
+            removeRoutes(entry);
+        }
+    }
+
+    /**
+     * Returns whether a registered app was loaded from {@code apkFile}.
+     */
+    public static boolean isApkInUse(File apkFile) {
+        String path = apkFile.getAbsolutePath();
+        for (Entry entry : sApps.values()) {
+            if (new File(entry.app.getApkPath()).getAbsolutePath().equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isEmpty() {
+        return sApps.isEmpty();
+    }
+
+    /**
+     * Sets the memory budget for all loaded plugins, see {@link App#getMemoryFootprint()}. When it
+     * is exceeded, the least recently used plugins without live activities are unloaded.
+     */
+    public static void setMemoryBudget(long bytes) {
+        sMemoryBudget = bytes;
+        trimToBudget(null);
+    }
+
+    public static long getMemoryBudget() {
+        return sMemoryBudget;
+    }
+
+    public static long getMemoryUsage() {
+        long usage = 0;
+        for (Entry entry : sApps.values()) {
+            usage += entry.app.getMemoryFootprint();
+        }
+        return usage;
+    }
+
+    public static void addOnAppEvictedListener(OnAppEvictedListener listener) {
+        sEvictedListeners.add(listener);
+    }
+
+    public static void removeOnAppEvictedListener(OnAppEvictedListener listener) {
+        sEvictedListeners.remove(listener);
+    }
+
+    public static void addOnAppUnloadedListener(OnAppUnloadedListener listener) {
+        sUnloadedListeners.add(listener);
+    }
+
+    public static void removeOnAppUnloadedListener(OnAppUnloadedListener listener) {
+        sUnloadedListeners.remove(listener);
+    }
+
+    static void onAppUnloaded(App app, long footprintBefore, long footprintAfter) {
+        for (OnAppUnloadedListener listener : sUnloadedListeners) {
+            listener.onAppUnloaded(app, footprintBefore, footprintAfter);
+        }
+    }
+
+    private static synchronized void trimToBudget(App keep) {
+        long usage = getMemoryUsage();
+        if (usage <= sMemoryBudget) {
+            return;
+        }
+
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : sApps.values()) {
+            if (entry.app != keep && !entry.app.hasLiveActivities()) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+        for (Entry entry : candidates) {
+            if (usage <= sMemoryBudget) {
+                break;
+            }
+
+            App app = entry.app;
+            long footprint = app.getMemoryFootprint();
+            app.unload();
+            usage -= footprint;
+
+            Log.i(TAG, "app evicted. package: " + app.getPackageName() + ", footprint: " + footprint);
+            for (OnAppEvictedListener listener : sEvictedListeners) {
+                listener.onAppEvicted(app, footprint);
+            }
+        }
+    }
+
+    private static void removeRoutes(Entry entry) {
+        for (ActivityInfo info : entry.app.getParsedPackage().getActivities()) {
+            sActivities.remove(info.name, entry);
+        }
+    }
+
+    private static synchronized void registerCallbacks(Context context) {
+        if (sActivityTracker == null) {
+            sActivityTracker = new ActivityTracker();
+            ((Application) context.getApplicationContext()).registerActivityLifecycleCallbacks(sActivityTracker);
+        }
+        if (sMemoryTrimmer == null) {
+            sMemoryTrimmer = new MemoryTrimmer();
+            context.getApplicationContext().registerComponentCallbacks(sMemoryTrimmer);
+        }
+    }
+
+    private static class Entry {
+        final App app;
+        volatile long lastAccess;
+
+        Entry(App app) {
+            this.app = app;
+            lastAccess = SystemClock.uptimeMillis();
+        }
+
+        App touch() {
+            lastAccess = SystemClock.uptimeMillis();
+            return app;
+        }
+    }
+
+    private static class MemoryTrimmer implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            for (Entry entry : sApps.values()) {
+                entry.app.trimMemory(level);
+            }
+            Log.i(TAG, "memory trimmed. level: " + level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+    private static class ActivityTracker implements Application.ActivityLifecycleCallbacks {
+        // The app each activity was created under. A later App for the same package must not
+        // be charged for activities of an earlier one. Lifecycle callbacks run on the main thread.
+        private WeakHashMap<Activity, App> mOwners = new WeakHashMap<>();
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            App app = getByActivity(activity.getComponentName());
+            if (app != null) {
+                mOwners.put(activity, app);
+                app.onActivityCreated();
+            }
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            App app = mOwners.remove(activity);
+            if (app != null) {
+                app.onActivityDestroyed();
+                // The app may just have become idle.
+                trimToBudget(null);
+            }
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
     }
 }
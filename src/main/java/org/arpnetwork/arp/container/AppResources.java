@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.util.Log;
+
+import org.arpnetwork.arp.container.reflect.Framework;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A plugin's Resources, created on first use and shared by everything that asks for the same
+ * Configuration. Each instance has its own AssetManager, since an AssetManager carries the
+ * configuration of the Resources built on it.
+ */
+class AppResources {
+    private static final String TAG = "AppResources";
+
+    // Enough for both orientations plus a locale or night mode switch.
+    private static final int MAX_CONFIGURATIONS = 4;
+
+    private Context mContext;
+    private String mApkPath;
+    private LoadTimings mLoadTimings;
+
+    private LinkedHashMap<Configuration, Resources> mResources =
+            new LinkedHashMap<Configuration, Resources>(MAX_CONFIGURATIONS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Configuration, Resources> eldest) {
+                    // Not closed: an activity that hasn't been recreated yet may still use it.
+                    return size() > MAX_CONFIGURATIONS;
+                }
+            };
+
+    AppResources(Context context, String apkPath, LoadTimings loadTimings) {
+        mContext = context;
+        mApkPath = apkPath;
+        mLoadTimings = loadTimings;
+    }
+
+    synchronized Resources get(Configuration config) {
+        Resources resources = mResources.get(config);
+        if (resources == null) {
+            resources = create(config);
+            if (resources != null) {
+                mResources.put(new Configuration(config), resources);
+            }
+        }
+        return resources;
+    }
+
+    synchronized boolean isEmpty() {
+        return mResources.isEmpty();
+    }
+
+    /**
+     * Closes every instance. Only call this when no activity of the plugin is alive.
+     */
+    synchronized void release() {
+        for (Resources resources : mResources.values()) {
+            resources.getAssets().close();
+        }
+        mResources.clear();
+    }
+
+    private Resources create(Configuration config) {
+        long begin = mLoadTimings.begin(LoadTimings.Stage.CREATE_RESOURCES);
+        try {
+            AssetManager am = AssetManager.class.newInstance();
+            Framework.ASSET_MANAGER_ADD_ASSET_PATH.invoke(am, mApkPath);
+            Resources res = mContext.getResources();
+            return new Resources(am, res.getDisplayMetrics(), config);
+        } catch (ReflectiveOperationException e) {
+            Log.e(TAG, "create resources failed. reason: " + e.getMessage());
+        } finally {
+            mLoadTimings.end(LoadTimings.Stage.CREATE_RESOURCES, begin);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Installed plugin APKs, one per package: {@code app_apps/<package>.apk}. An APK is installed
+ * from a stream in a single pass that writes it and computes its digest, and its metadata is
+ * put into {@link MetadataCache} right away, so the following {@link App#load()} neither reads
+ * the whole file again nor parses it.
+ */
+public class AppStore {
+    private static final String TAG = "AppStore";
+
+    private static final String DIR_NAME = "apps";
+    private static final String APK_SUFFIX = ".apk";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Context mContext;
+    private File mDir;
+
+    public AppStore(Context context) {
+        mContext = context;
+        mDir = context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Installs the APK read from {@code in} on the loader pool. The future completes with an
+     * app that is ready to be loaded. {@code in} is closed when done.
+     */
+    public CompletableFuture<App> installAsync(final InputStream in) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return install(in);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, AppLoader.getInstance().getExecutor());
+    }
+
+    /**
+     * Installs the APK read from {@code in} and returns an app that is ready to be loaded. If the
+     * installed version is loaded, the new one is staged until its next load after an unload.
+     * Blocks, call it from a background thread. {@code in} is closed when done.
+     */
+    public App install(InputStream in) throws IOException {
+        File tmp = File.createTempFile("install", ".tmp", mDir);
+        try {
+            String digest = copy(in, tmp);
+
+            // The zip central directory is at the very end of the stream, so parsing can't start
+            // any earlier. With the digest known this parses the package and checks its
+            // signatures in one pass. Done before the rename, so that a bad download never
+            // replaces an installed APK.
+            ApkVerifier verifier = new ApkVerifier(mContext);
+            ParsedPackage parsed = verifier.verify(tmp, digest, new LoadTimings(null));
+            verifier.remove(tmp);
+            if (parsed == null) {
+                throw new IOException("verify failed");
+            }
+
+            File apkFile = getApkFile(parsed.getPackageName());
+            // A reinstall must come from the same signer as the installed version.
+            if (!ApkVerifier.isSameSigner(verifier.getSigner(apkFile), parsed)) {
+                throw new IOException("signer changed: " + parsed.getPackageName());
+            }
+            // A full install supersedes any staged update.
+            new AppUpdater(mContext).discardPending(apkFile);
+            // A loaded app keeps reading its APK, so then the new version is staged like an
+            // update and takes effect on the next load after the app is unloaded.
+            boolean inUse = AppManager.isApkInUse(apkFile);
+            File target = inUse ? AppUpdater.getPendingFile(apkFile) : apkFile;
+            if (!tmp.renameTo(target)) {
+                throw new IOException("rename failed: " + target);
+            }
+            // The first load then finds the APK in the trust cache.
+            verifier.trust(target, parsed);
+            try {
+                new MetadataCache(mContext).put(target, parsed);
+            } catch (IOException e) {
+                // The first load parses it again.
+                Log.e(TAG, "write metadata failed. reason: " + e.getMessage());
+            }
+
+            Log.i(TAG, (inUse ? "app install staged. package: " : "app installed. package: ") +
+                    parsed.getPackageName() + ", digest: " + digest);
+            return new App(mContext, apkFile.getPath());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stages an update of an installed package from a binary delta, which takes effect the next
+     * time the package is loaded while no app uses it. Blocks, call it from a background thread.
+     * {@code delta} is closed when done.
+     */
+    public void update(String packageName, InputStream delta) throws IOException {
+        File apkFile = getApkFile(packageName);
+        if (!apkFile.isFile()) {
+            delta.close();
+            throw new IOException("not installed: " + packageName);
+        }
+        new AppUpdater(mContext).update(apkFile, delta);
+    }
+
+    public File getApkFile(String packageName) {
+        return new File(mDir, packageName + APK_SUFFIX);
+    }
+
+    public boolean isInstalled(String packageName) {
+        return getApkFile(packageName).isFile();
+    }
+
+    public void uninstall(String packageName) {
+        File apkFile = getApkFile(packageName);
+        new AppUpdater(mContext).discardPending(apkFile);
+        new ApkVerifier(mContext).remove(apkFile);
+        new MetadataCache(mContext).remove(apkFile);
+        DexOptimizer.remove(apkFile);
+        new NativeLibraries(mContext, AppLoader.getInstance().getExecutor()).remove(packageName);
+        apkFile.delete();
+    }
+
+    private static String copy(InputStream in, File file) throws IOException {
+        ApkDigest digest = new ApkDigest();
+        try (InputStream input = in;
+             FileOutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+            out.getFD().sync();
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Updates plugin APKs from binary deltas, see {@link ApkDelta}. The new version is written next
+ * to the installed one as {@code <apk>.pending} and replaces it with a rename the next time the
+ * APK is loaded while no app uses it, so a running plugin never sees its APK change.
+ * <p>
+ * The new version's metadata is cached when it is verified at staging time. Since it ends up at
+ * the installed APK's path, the runtime keeps using the optimized dex output there when the dex
+ * files are unchanged. The first load after an update then costs about as much as any other load.
+ */
+public class AppUpdater {
+    private static final String TAG = "AppUpdater";
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    private Context mContext;
+
+    public AppUpdater(Context context) {
+        mContext = context;
+    }
+
+    public static File getPendingFile(File apkFile) {
+        return new File(apkFile.getPath() + PENDING_SUFFIX);
+    }
+
+    public boolean hasPendingUpdate(File apkFile) {
+        return getPendingFile(apkFile).isFile();
+    }
+
+    /**
+     * Applies {@code delta} to {@code apkFile} and stages the result until the next load.
+     * Blocks, call it from a background thread. {@code delta} is closed when done.
+     */
+    public void update(File apkFile, InputStream delta) throws IOException {
+        ApkVerifier verifier = new ApkVerifier(mContext);
+        String baseDigest = verifier.verify(apkFile);
+        if (baseDigest == null) {
+            throw new IOException("installed apk failed verification: " + apkFile);
+        }
+
+        File pending = getPendingFile(apkFile);
+        File tmp = new File(pending.getPath() + ".tmp");
+        try {
+            String digest;
+            try (InputStream in = delta) {
+                digest = ApkDelta.apply(apkFile, baseDigest, in, tmp);
+            }
+            // Only the signatures are checked, the digest was verified while writing. The parse
+            // doing that also provides the new version's metadata.
+            ParsedPackage parsed = verifier.verify(tmp, digest, new LoadTimings(null));
+            verifier.remove(tmp);
+            if (parsed == null) {
+                throw new IOException("update failed verification: " + apkFile);
+            }
+            if (!ApkVerifier.isSameSigner(verifier.getSigner(apkFile), parsed)) {
+                throw new IOException("update signer changed: " + apkFile);
+            }
+
+            if (!tmp.renameTo(pending)) {
+                throw new IOException("rename failed: " + pending);
+            }
+            // Renaming keeps the size and mtime these entries are checked against.
+            verifier.trust(pending, parsed);
+            try {
+                new MetadataCache(mContext).put(pending, parsed);
+            } catch (IOException e) {
+                Log.e(TAG, "write metadata failed. reason: " + e.getMessage());
+            }
+
+            Log.i(TAG, "update staged. path: " + apkFile + ", digest: " + baseDigest + " -> " + digest);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Moves a staged update into place, unless an app still uses {@code apkFile}. Returns whether
+     * the APK was replaced.
+     */
+    boolean applyPending(File apkFile) {
+        File pending = getPendingFile(apkFile);
+        if (!pending.isFile() || AppManager.isApkInUse(apkFile)) {
+            return false;
+        }
+
+        if (!pending.renameTo(apkFile)) {
+            Log.e(TAG, "apply update failed. path: " + apkFile);
+            return false;
+        }
+        new ApkVerifier(mContext).move(pending, apkFile);
+        new MetadataCache(mContext).move(pending, apkFile);
+
+        Log.i(TAG, "update applied. path: " + apkFile);
+        return true;
+    }
+
+    public void discardPending(File apkFile) {
+        File pending = getPendingFile(apkFile);
+        new ApkVerifier(mContext).remove(pending);
+        new MetadataCache(mContext).remove(pending);
+        pending.delete();
+    }
+}
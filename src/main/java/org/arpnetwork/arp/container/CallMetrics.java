@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for everything the container intercepts, by method and by
+ * plugin package. Recording is lock-free and doesn't allocate once a key has been seen.
+ */
+public class CallMetrics {
+    /**
+     * Histogram buckets are powers of two in microseconds: bucket 0 is below 1us, bucket i
+     * covers [2^(i-1), 2^i) us and the last one everything from about 4s up.
+     */
+    public static final int BUCKET_COUNT = 24;
+
+    private static volatile boolean sEnabled = true;
+
+    private static final ConcurrentHashMap<String, Recorder> sMethods = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Recorder> sPackages = new ConcurrentHashMap<>();
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the recorder for {@code name}. Look it up once and keep it where possible.
+     */
+    public static Recorder forMethod(String name) {
+        return getOrCreate(sMethods, name);
+    }
+
+    public static Recorder forPackage(String packageName) {
+        return getOrCreate(sPackages, packageName);
+    }
+
+    public static List<Snapshot> snapshotMethods() {
+        return snapshot(sMethods);
+    }
+
+    public static List<Snapshot> snapshotPackages() {
+        return snapshot(sPackages);
+    }
+
+    public static void reset() {
+        for (Recorder recorder : sMethods.values()) {
+            recorder.reset();
+        }
+        for (Recorder recorder : sPackages.values()) {
+            recorder.reset();
+        }
+    }
+
+    private static Recorder getOrCreate(ConcurrentHashMap<String, Recorder> recorders, String name) {
+        Recorder recorder = recorders.get(name);
+        if (recorder == null) {
+            Recorder created = new Recorder(name);
+            recorder = recorders.putIfAbsent(name, created);
+            if (recorder == null) {
+                recorder = created;
+            }
+        }
+        return recorder;
+    }
+
+    private static List<Snapshot> snapshot(ConcurrentHashMap<String, Recorder> recorders) {
+        List<Snapshot> snapshots = new ArrayList<>(recorders.size());
+        for (Recorder recorder : recorders.values()) {
+            snapshots.add(recorder.snapshot());
+        }
+        return snapshots;
+    }
+
+    static int bucketOf(long durationNanos) {
+        long micros = durationNanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    public static class Recorder {
+        private final String mName;
+        private final LongAdder mCount = new LongAdder();
+        private final LongAdder mTotalNanos = new LongAdder();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        Recorder(String name) {
+            mName = name;
+        }
+
+        public void record(long durationNanos) {
+            if (!sEnabled) {
+                return;
+            }
+
+            mCount.increment();
+            mTotalNanos.add(durationNanos);
+            mBuckets.incrementAndGet(bucketOf(durationNanos));
+        }
+
+        Snapshot snapshot() {
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new Snapshot(mName, mCount.sum(), mTotalNanos.sum(), buckets);
+        }
+
+        void reset() {
+            mCount.reset();
+            mTotalNanos.reset();
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * A point-in-time copy of one recorder. Values are read without stopping writers, so count
+     * and buckets may differ by the few calls recorded while the copy was taken.
+     */
+    public static class Snapshot {
+        public final String name;
+        public final long count;
+        public final long totalNanos;
+        public final long[] buckets;
+
+        Snapshot(String name, long count, long totalNanos, long[] buckets) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.buckets = buckets;
+        }
+
+        public long getMeanNanos() {
+            return count > 0 ? totalNanos / count : 0;
+        }
+
+        /**
+         * Returns the upper bound in microseconds of the bucket holding the given percentile
+         * (0-100).
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{count=" + count + ", mean=" + getMeanNanos() / 1000 + "us, p50<=" +
+                    getPercentileMicros(50) + "us, p99<=" + getPercentileMicros(99) + "us}";
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * Runs and removes dex optimization for plugins. Since O the runtime ignores the
+ * optimizedDirectory of a DexClassLoader and keeps the output next to the APK, in
+ * {@code oat/<isa>/<name>.odex} and {@code .vdex}, checked against the dex checksums of the APK
+ * at that path. So an APK that is replaced by a rename keeps its output as long as its dex files
+ * are unchanged, and anything else is compiled again on the next load.
+ */
+public class DexOptimizer {
+    private static final String TAG = "DexOptimizer";
+
+    private static final String OAT_DIR_NAME = "oat";
+    private static final String[] OUTPUT_SUFFIXES = { ".odex", ".vdex", ".art" };
+
+    private Context mContext;
+
+    public DexOptimizer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the directory the runtime writes the optimized output of {@code apkFile} to, one
+     * subdirectory per instruction set.
+     */
+    public static File getOatDirectory(File apkFile) {
+        return new File(apkFile.getParentFile(), OAT_DIR_NAME);
+    }
+
+    /**
+     * Runs dex optimization for {@code apkFile} so that the first real load finds its output
+     * next to the APK. Blocks, call it from a background thread.
+     */
+    public boolean prewarm(File apkFile) {
+        if (!apkFile.isFile()) {
+            return false;
+        }
+
+        // Opening the dex files is what triggers dexopt when there is no valid output yet.
+        new DexClassLoader(apkFile.getPath(), null, null, mContext.getClassLoader());
+
+        Log.i(TAG, "dex prewarmed. path: " + apkFile);
+        return true;
+    }
+
+    /**
+     * Removes the optimized output of {@code apkFile}, for all instruction sets.
+     */
+    public static void remove(File apkFile) {
+        String name = apkFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        File[] isaDirs = getOatDirectory(apkFile).listFiles();
+        if (isaDirs == null) {
+            return;
+        }
+        for (File isaDir : isaDirs) {
+            for (String suffix : OUTPUT_SUFFIXES) {
+                new File(isaDir, baseName + suffix).delete();
+            }
+        }
+    }
+}
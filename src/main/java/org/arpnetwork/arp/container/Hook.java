@@ -19,7 +19,9 @@ package org.arpnetwork.arp.container;
 import android.app.Activity;
 import android.app.Instrumentation;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.Bundle;
 import android.os.Handler;
@@ -28,107 +30,203 @@ import android.util.Log;
 import com.taobao.android.dexposed.DexposedBridge;
 import com.taobao.android.dexposed.XC_MethodHook;
 
-import org.apache.commons.lang3.reflect.FieldUtils;
-import org.apache.commons.lang3.reflect.MethodUtils;
 import org.arpnetwork.arp.container.proxy.ActivityThreadHandlerCallback;
 import org.arpnetwork.arp.container.proxy.IActivityManagerHandler;
 import org.arpnetwork.arp.container.proxy.IPackageManagerHandler;
+import org.arpnetwork.arp.container.reflect.Framework;
 
-import java.io.File;
-import java.lang.reflect.Field;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Hook {
     private static final String TAG = "Hook";
 
-    public static final String EXTRA_TARGET_INTENT = "TARGET_INTENT";
+    public static final String EXTRA_TARGET_TOKEN = "TARGET_TOKEN";
+    public static final String EXTRA_TARGET_COMPONENT = "TARGET_COMPONENT";
+
+    private static final CallMetrics.Recorder sActivityCreateRecorder =
+            CallMetrics.forMethod("Instrumentation#callActivityOnCreate");
+
+    private static boolean sInstalled;
+    // What init() replaced, so that uninstall() can put it back.
+    private static Object sActivityManagerProxy;
+    private static Object sRawActivityManager;
+    private static Object sPackageManagerProxy;
+    private static Object sRawPackageManager;
+    private static Handler.Callback sRawHandlerCallback;
+    private static List<XC_MethodHook.Unhook> sUnhooks = new ArrayList<>();
+    // callActivityOnCreate only runs on the main thread.
+    private static long sActivityCreateBegin;
+
+    /**
+     * Installs the framework patches shared by all apps, the first time it is called. They find
+     * the owning app of a component through {@link AppManager}.
+     */
+    public static synchronized boolean init(Context context, LoadTimings timings) {
+        if (sInstalled) {
+            return true;
+        }
 
-    public static boolean init(final Context context, final App app) {
         try {
+            Framework.verify();
+
+            long begin = timings.begin(LoadTimings.Stage.PATCH_ACTIVITY_MANAGER);
             patchActivityManager(context);
+            timings.end(LoadTimings.Stage.PATCH_ACTIVITY_MANAGER, begin);
 
-            patchPackageMananger(context, app);
+            begin = timings.begin(LoadTimings.Stage.PATCH_PACKAGE_MANAGER);
+            patchPackageMananger(context);
+            timings.end(LoadTimings.Stage.PATCH_PACKAGE_MANAGER, begin);
 
+            begin = timings.begin(LoadTimings.Stage.PATCH_ACTIVITY_THREAD);
             patchActivityThread();
-
-            patchClassLoader(context.getClassLoader(), app);
-
-            DexposedBridge.findAndHookMethod(Instrumentation.class, "callActivityOnCreate", Activity.class, Bundle.class, new XC_MethodHook() {
-                @Override
-                protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                    patchResources((Activity) param.args[0], app);
-                }
-            });
+            timings.end(LoadTimings.Stage.PATCH_ACTIVITY_THREAD, begin);
         } catch (ReflectiveOperationException e) {
             Log.e(TAG, "init failed. reason: " + e.getMessage());
 
             return false;
         }
 
+        long begin = timings.begin(LoadTimings.Stage.HOOK_INSTRUMENTATION);
+        hookInstrumentation();
+        timings.end(LoadTimings.Stage.HOOK_INSTRUMENTATION, begin);
+
+        sInstalled = true;
         return true;
     }
 
-    private static void patchActivityManager(Context context) throws ReflectiveOperationException {
-        Class<?> activityManagerClass = Class.forName("android.app.ActivityManager");
-        Class<?> activityManagerInterface = Class.forName("android.app.IActivityManager");
-        Class<?> singletonClass = Class.forName("android.util.Singleton");
-        Field instanceField = FieldUtils.getField(singletonClass, "mInstance", true);
+    /**
+     * Removes the hooks and restores the framework objects init() replaced, unless something else
+     * has replaced them since. Only call this once no app is registered with {@link AppManager}.
+     */
+    public static synchronized void uninstall() {
+        if (!sInstalled) {
+            return;
+        }
 
-        Object singleton = FieldUtils.readStaticField(activityManagerClass, "IActivityManagerSingleton", true);
-        Object rawAM = FieldUtils.readField(instanceField, singleton);
+        for (XC_MethodHook.Unhook unhook : sUnhooks) {
+            unhook.unhook();
+        }
+        sUnhooks.clear();
+
+        Object singleton = Framework.ACTIVITY_MANAGER_SINGLETON.getStatic();
+        if (Framework.SINGLETON_INSTANCE.get(singleton) == sActivityManagerProxy) {
+            Framework.SINGLETON_INSTANCE.set(singleton, sRawActivityManager);
+        }
+        if (Framework.ACTIVITY_THREAD_PACKAGE_MANAGER.getStatic() == sPackageManagerProxy) {
+            Framework.ACTIVITY_THREAD_PACKAGE_MANAGER.setStatic(sRawPackageManager);
+        }
+        Object currentActivityThread = Framework.ACTIVITY_THREAD_CURRENT.getStatic();
+        Handler mH = (Handler) Framework.ACTIVITY_THREAD_H.get(currentActivityThread);
+        if (Framework.HANDLER_CALLBACK.get(mH) instanceof ActivityThreadHandlerCallback) {
+            Framework.HANDLER_CALLBACK.set(mH, sRawHandlerCallback);
+        }
+
+        sActivityManagerProxy = null;
+        sRawActivityManager = null;
+        sPackageManagerProxy = null;
+        sRawPackageManager = null;
+        sRawHandlerCallback = null;
+        sInstalled = false;
+
+        Log.i(TAG, "hooks uninstalled.");
+    }
+
+    private static void hookInstrumentation() {
+        // Instantiate plugin activities from their own class loader.
+        addUnhook(DexposedBridge.findAndHookMethod(Instrumentation.class, "newActivity", ClassLoader.class, String.class, Intent.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                App app = AppManager.getByClassName((String) param.args[1]);
+                if (app != null && app.getClassLoader() != null) {
+                    param.args[0] = app.getClassLoader();
+                }
+            }
+        }));
+
+        addUnhook(DexposedBridge.findAndHookMethod(Instrumentation.class, "callActivityOnCreate", Activity.class, Bundle.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                Activity activity = (Activity) param.args[0];
+                App app = AppManager.getByActivity(activity.getClass().getName());
+                sActivityCreateBegin = System.nanoTime();
+                if (app != null) {
+                    app.getLoadTimings().onActivityCreateBegin();
+                    patchContext(activity, app);
+                    patchResources(activity, app);
+                }
+            }
+
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                Activity activity = (Activity) param.args[0];
+                App app = AppManager.getByActivity(activity.getClass().getName());
+                long duration = System.nanoTime() - sActivityCreateBegin;
+                sActivityCreateRecorder.record(duration);
+                if (app != null) {
+                    app.getLoadTimings().onActivityCreateEnd();
+                    CallMetrics.forPackage(app.getPackageName()).record(duration);
+                }
+            }
+        }));
+    }
+
+    private static void addUnhook(XC_MethodHook.Unhook unhook) {
+        if (unhook != null) {
+            sUnhooks.add(unhook);
+        }
+    }
+
+    private static void patchActivityManager(Context context) {
+        Object singleton = Framework.ACTIVITY_MANAGER_SINGLETON.getStatic();
+        Object rawAM = Framework.SINGLETON_INSTANCE.get(singleton);
 
         Object proxy = Proxy.newProxyInstance(
                 context.getClassLoader(),
-                new Class[]{activityManagerInterface},
-                new IActivityManagerHandler(rawAM));
-        FieldUtils.writeField(instanceField, singleton, proxy);
+                new Class[]{Framework.I_ACTIVITY_MANAGER},
+                new IActivityManagerHandler(context, rawAM, Framework.I_ACTIVITY_MANAGER));
+        Framework.SINGLETON_INSTANCE.set(singleton, proxy);
+        sRawActivityManager = rawAM;
+        sActivityManagerProxy = proxy;
 
         Log.i(TAG, "ActivityManager patched.");
     }
 
-    private static void patchPackageMananger(Context context, App app) throws ReflectiveOperationException {
-        Class<?> activityThreadClass = Class.forName("android.app.ActivityThread");
-        Class<?> packageManagerInterface = Class.forName("android.content.pm.IPackageManager");
-
-        Field sPackageManagerField = FieldUtils.getField(activityThreadClass, "sPackageManager", true);
-        Object sPackageManager = FieldUtils.readStaticField(sPackageManagerField);
+    private static void patchPackageMananger(Context context) {
+        Object sPackageManager = Framework.ACTIVITY_THREAD_PACKAGE_MANAGER.getStatic();
         Object proxy = Proxy.newProxyInstance(
                 context.getClassLoader(),
-                new Class[]{packageManagerInterface},
-                new IPackageManagerHandler(sPackageManager, app));
-        FieldUtils.writeStaticField(sPackageManagerField, proxy);
+                new Class[]{Framework.I_PACKAGE_MANAGER},
+                new IPackageManagerHandler(sPackageManager, Framework.I_PACKAGE_MANAGER));
+        Framework.ACTIVITY_THREAD_PACKAGE_MANAGER.setStatic(proxy);
+        sRawPackageManager = sPackageManager;
+        sPackageManagerProxy = proxy;
 
         Log.i(TAG, "PackageManager patched.");
     }
 
-    private static void patchActivityThread() throws ReflectiveOperationException {
-        Class<?> activityThreadClass = Class.forName("android.app.ActivityThread");
-        Object currentActivityThread = FieldUtils.readStaticField(activityThreadClass, "sCurrentActivityThread", true);
-        Handler mH = (Handler) FieldUtils.readField(currentActivityThread, "mH", true);
-        FieldUtils.writeField(mH, "mCallback", new ActivityThreadHandlerCallback(mH), true);
+    private static void patchActivityThread() {
+        Object currentActivityThread = Framework.ACTIVITY_THREAD_CURRENT.getStatic();
+        Handler mH = (Handler) Framework.ACTIVITY_THREAD_H.get(currentActivityThread);
+        sRawHandlerCallback = (Handler.Callback) Framework.HANDLER_CALLBACK.get(mH);
+        Framework.HANDLER_CALLBACK.set(mH, new ActivityThreadHandlerCallback(mH));
 
         Log.i(TAG, "ActivityThread patched.");
     }
 
-    private static void patchClassLoader(ClassLoader cl, App app) throws ReflectiveOperationException {
-        // Object pathList = cl.pathList;
-        // String dexPath = app.getApkPath();
-        // File optimizedDirectory = app.getOptimizedDirectory();
-        // pathList.addDexPath(dexPath, optimizedDirectory);
-
-        Object pathList = FieldUtils.readField(cl, "pathList", true);
-        String dexPath = app.getApkPath();
-        File optimizedDirectory = app.getOptimizedDirectory();
-        MethodUtils.invokeMethod(pathList, true, "addDexPath", dexPath, optimizedDirectory);
-
-        Log.i(TAG, "ClassLoader patched.");
+    private static void patchContext(Activity activity, App app) {
+        Context base = activity.getBaseContext();
+        if (!(base instanceof AppContext)) {
+            Framework.CONTEXT_WRAPPER_BASE.set(activity, new AppContext(base, app.getClassLoader()));
+        }
     }
 
-    private static void patchResources(Activity activity, App app) throws ReflectiveOperationException {
+    private static void patchResources(Activity activity, App app) {
         ActivityInfo activityInfo = app.getActivityInfo(activity.getClass().getName());
 
         // Update Theme & Resources
-        ActivityInfo ai = (ActivityInfo) FieldUtils.readField(activity, "mActivityInfo", true);
+        ActivityInfo ai = (ActivityInfo) Framework.ACTIVITY_INFO.get(activity);
         ai.icon = activityInfo.getIconResource();
         ai.logo = activityInfo.getLogoResource();
         ai.nonLocalizedLabel = activityInfo.nonLocalizedLabel;
@@ -139,17 +237,15 @@ public class Hook {
         if (ai.theme == 0) {
             ai.theme = activityInfo.applicationInfo.theme;
         }
-        Resources resources = app.getResources();
-        Resources.Theme theme = resources.newTheme();
-        theme.setTo(activity.getApplicationContext().getTheme());
-        if (ai.theme > 0) {
-            theme.applyStyle(ai.theme, true);
-        }
-        FieldUtils.writeField(activity, "mResources", resources, true);
-        FieldUtils.writeField(activity, "mTheme", theme, true);
+        // The activity still has the host resources at this point, with its own configuration.
+        Configuration config = activity.getResources().getConfiguration();
+        PresentationCache presentation = app.getPresentationCache();
+        Resources.Theme theme = presentation.newTheme(ai.theme, activity.getApplicationContext().getTheme(), config);
+        Framework.CONTEXT_THEME_WRAPPER_RESOURCES.set(activity, app.getResources(config));
+        Framework.CONTEXT_THEME_WRAPPER_THEME.set(activity, theme);
 
         // Update title
-        activity.setTitle(app.loadLabel(activityInfo));
+        activity.setTitle(presentation.getLabel(activityInfo, config));
 
         Log.i(TAG, "resources patched. activity: " + activity.getLocalClassName());
     }
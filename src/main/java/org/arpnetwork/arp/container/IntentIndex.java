@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The intent filters of one plugin's activities, indexed by action, category and data scheme.
+ * A query only runs IntentFilter.match() on the shortest list its intent has keys for.
+ */
+class IntentIndex {
+    private static final String TAG = "IntentIndex";
+
+    static final Comparator<ResolveInfo> BY_PRIORITY = (a, b) -> Integer.compare(b.priority, a.priority);
+
+    private ArrayList<Entry> mEntries = new ArrayList<>();
+    private HashMap<String, List<Entry>> mByAction = new HashMap<>();
+    private HashMap<String, List<Entry>> mByCategory = new HashMap<>();
+    private HashMap<String, List<Entry>> mByScheme = new HashMap<>();
+
+    private static class Entry {
+        final ActivityInfo info;
+        final IntentFilter filter;
+
+        Entry(ActivityInfo info, IntentFilter filter) {
+            this.info = info;
+            this.filter = filter;
+        }
+    }
+
+    private static class Match {
+        final Entry entry;
+        final int match;
+
+        Match(Entry entry, int match) {
+            this.entry = entry;
+            this.match = match;
+        }
+    }
+
+    IntentIndex(ParsedPackage parsed) {
+        for (ActivityInfo info : parsed.getActivities()) {
+            for (IntentFilter filter : parsed.getIntentFilters(info.name)) {
+                Entry entry = new Entry(info, filter);
+                mEntries.add(entry);
+                for (int i = 0; i < filter.countActions(); i++) {
+                    add(mByAction, filter.getAction(i), entry);
+                }
+                for (int i = 0; i < filter.countCategories(); i++) {
+                    add(mByCategory, filter.getCategory(i), entry);
+                }
+                for (int i = 0; i < filter.countDataSchemes(); i++) {
+                    add(mByScheme, filter.getDataScheme(i), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the activities matching {@code intent}, at most one result per activity, highest
+     * priority first.
+     */
+    List<ResolveInfo> query(Intent intent, String resolvedType, int flags) {
+        // A matching filter has the intent's action, all of its categories, and its scheme.
+        List<Entry> candidates = mEntries;
+        String action = intent.getAction();
+        if (action != null) {
+            candidates = shorter(candidates, mByAction, action);
+        }
+        Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            for (String category : categories) {
+                candidates = shorter(candidates, mByCategory, category);
+            }
+        }
+        String scheme = intent.getScheme();
+        // Except that a filter with only MIME types also matches content: and file: data.
+        if (scheme != null && !scheme.equals("content") && !scheme.equals("file")) {
+            candidates = shorter(candidates, mByScheme, scheme);
+        }
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
+        // An activity may match through several filters, the best one of each stands for it.
+        LinkedHashMap<String, Match> best = new LinkedHashMap<>();
+        for (Entry entry : candidates) {
+            IntentFilter filter = entry.filter;
+            if (defaultOnly && !filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                continue;
+            }
+            int match = filter.match(action, resolvedType, scheme, intent.getData(), categories, TAG);
+            if (match < 0) {
+                continue;
+            }
+            Match current = best.get(entry.info.name);
+            if (current == null || isBetter(filter, match, current)) {
+                best.put(entry.info.name, new Match(entry, match));
+            }
+        }
+
+        List<ResolveInfo> results = new ArrayList<>(best.size());
+        for (Match match : best.values()) {
+            results.add(newResolveInfo(match.entry.info, match.entry.filter, match.match, flags));
+        }
+        Collections.sort(results, BY_PRIORITY);
+        return results;
+    }
+
+    /**
+     * Returns a ResolveInfo holding copies, callers may modify it without affecting the routing
+     * table or running activities.
+     */
+    static ResolveInfo newResolveInfo(ActivityInfo info, IntentFilter filter, int match, int flags) {
+        ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo(info);
+        ri.match = match;
+        if (filter != null) {
+            ri.priority = filter.getPriority();
+            ri.isDefault = filter.hasCategory(Intent.CATEGORY_DEFAULT);
+            if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+                ri.filter = new IntentFilter(filter);
+            }
+        }
+        return ri;
+    }
+
+    private static boolean isBetter(IntentFilter filter, int match, Match current) {
+        int priority = filter.getPriority();
+        int currentPriority = current.entry.filter.getPriority();
+        return priority > currentPriority || (priority == currentPriority && match > current.match);
+    }
+
+    private static List<Entry> shorter(List<Entry> candidates, HashMap<String, List<Entry>> index, String key) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return entries.size() < candidates.size() ? entries : candidates;
+    }
+
+    private static void add(HashMap<String, List<Entry>> index, String key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            index.put(key, entries);
+        }
+        // A filter may repeat a key.
+        if (entries.isEmpty() || entries.get(entries.size() - 1) != entry) {
+            entries.add(entry);
+        }
+    }
+}
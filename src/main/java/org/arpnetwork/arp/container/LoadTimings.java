@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Arrays;
+
+/**
+ * Monotonic durations of the stages of one app load. Stages that run on a single thread are
+ * also wrapped in an android.os.Trace section named "AppLoad:&lt;stage&gt;".
+ */
+public class LoadTimings {
+    public static final long NOT_RUN = -1;
+
+    public enum Stage {
+        VERIFY_PACKAGE,
+        READ_METADATA_CACHE,
+        PARSE_ARCHIVE,
+        RESOLVE_LAUNCHER,
+        CREATE_RESOURCES,
+        PREPARE_NATIVE_LIBRARIES,
+        CREATE_CLASS_LOADER,
+        PATCH_ACTIVITY_MANAGER,
+        PATCH_PACKAGE_MANAGER,
+        PATCH_ACTIVITY_THREAD,
+        HOOK_INSTRUMENTATION,
+        TOTAL,
+        FIRST_ACTIVITY_CREATE;
+
+        final String mSectionName = "AppLoad:" + name();
+    }
+
+    public interface OnStageFinishedListener {
+        void onStageFinished(App app, Stage stage, long durationNanos);
+    }
+
+    private static volatile OnStageFinishedListener sListener;
+
+    private App mApp;
+    private long[] mDurations = new long[Stage.values().length];
+    private long mFirstActivityCreateBegin;
+
+    LoadTimings(App app) {
+        mApp = app;
+        Arrays.fill(mDurations, NOT_RUN);
+    }
+
+    /**
+     * Receives every stage of every app load as it finishes, on the thread that ran it.
+     */
+    public static void setOnStageFinishedListener(OnStageFinishedListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Returns the duration of {@code stage} in nanoseconds, or {@link #NOT_RUN}. The framework
+     * patch stages only run for the first app loaded in a process.
+     */
+    public long getDuration(Stage stage) {
+        return mDurations[stage.ordinal()];
+    }
+
+    long begin(Stage stage) {
+        Trace.beginSection(stage.mSectionName);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    void end(Stage stage, long begin) {
+        long duration = SystemClock.elapsedRealtimeNanos() - begin;
+        Trace.endSection();
+
+        record(stage, duration);
+    }
+
+    /**
+     * Records a stage that spans threads and therefore can't be a trace section.
+     */
+    void record(Stage stage, long durationNanos) {
+        mDurations[stage.ordinal()] = durationNanos;
+
+        OnStageFinishedListener listener = sListener;
+        if (listener != null && mApp != null) {
+            listener.onStageFinished(mApp, stage, durationNanos);
+        }
+    }
+
+    void onActivityCreateBegin() {
+        if (mDurations[Stage.FIRST_ACTIVITY_CREATE.ordinal()] == NOT_RUN && mFirstActivityCreateBegin == 0) {
+            mFirstActivityCreateBegin = begin(Stage.FIRST_ACTIVITY_CREATE);
+        }
+    }
+
+    void onActivityCreateEnd() {
+        if (mFirstActivityCreateBegin != 0) {
+            end(Stage.FIRST_ACTIVITY_CREATE, mFirstActivityCreateBegin);
+            mFirstActivityCreateBegin = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LoadTimings{");
+        for (Stage stage : Stage.values()) {
+            long duration = mDurations[stage.ordinal()];
+            if (duration != NOT_RUN) {
+                sb.append(stage).append('=').append(duration / 1000).append("us ");
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
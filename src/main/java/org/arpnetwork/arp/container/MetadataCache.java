@@ -0,0 +1,272 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry layout (big endian):
+ * <pre>
+ * int    magic
+ * int    format version
+ * string platform fingerprint
+ * long   apk size
+ * long   apk mtime
+ * string apk digest
+ * int    payload length
+ * byte[] payload (Parcel: PackageInfo, launcher name, intent filters)
+ * </pre>
+ * The payload is a marshalled Parcel, whose layout is only stable for one platform build, so the
+ * fingerprint is part of the key. Bump {@link #VERSION} whenever the payload layout changes.
+ */
+public class MetadataCache {
+    private static final String TAG = "MetadataCache";
+
+    private static final String DIR_NAME = "metadata";
+
+    private static final int MAGIC = 0x41525043; // "ARPC"
+    private static final int VERSION = 3;
+
+    private File mDir;
+
+    public MetadataCache(Context context) {
+        mDir = context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+    }
+
+    public ParsedPackage load(File apkFile) {
+        return load(apkFile, null, new LoadTimings(null));
+    }
+
+    /**
+     * Same as {@link #load(File)}. {@code digest} is the APK's digest if the caller already has
+     * it, or null to have it computed when needed.
+     */
+    ParsedPackage load(File apkFile, String digest, LoadTimings timings) {
+        File entry = getEntryFile(apkFile);
+
+        long begin = timings.begin(LoadTimings.Stage.READ_METADATA_CACHE);
+        ParsedPackage parsed = read(entry, apkFile, digest);
+        timings.end(LoadTimings.Stage.READ_METADATA_CACHE, begin);
+        if (parsed != null) {
+            return parsed;
+        }
+
+        parsed = ParsedPackage.parse(apkFile, timings);
+        if (parsed == null) {
+            return null;
+        }
+
+        try {
+            parsed.setDigest(digest != null ? digest : ApkDigest.compute(apkFile));
+        } catch (IOException e) {
+            Log.e(TAG, "compute digest failed. reason: " + e.getMessage());
+            return null;
+        }
+
+        try {
+            write(entry, apkFile, parsed);
+        } catch (IOException e) {
+            Log.e(TAG, "write cache failed. reason: " + e.getMessage());
+        }
+        return parsed;
+    }
+
+    /**
+     * Stores {@code parsed} for {@code apkFile}, when both are already at hand. {@code parsed}
+     * must have its digest set.
+     */
+    void put(File apkFile, ParsedPackage parsed) throws IOException {
+        write(getEntryFile(apkFile), apkFile, parsed);
+    }
+
+    /**
+     * Moves the entry of {@code from} to {@code to}, after the APK itself was renamed.
+     */
+    void move(File from, File to) {
+        File entry = getEntryFile(from);
+        if (entry.exists() && !entry.renameTo(getEntryFile(to))) {
+            entry.delete();
+        }
+    }
+
+    public void remove(File apkFile) {
+        getEntryFile(apkFile).delete();
+    }
+
+    public void clear() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getEntryFile(File apkFile) {
+        return new File(mDir, ApkDigest.compute(apkFile.getAbsolutePath()));
+    }
+
+    private ParsedPackage read(File entry, File apkFile, String knownDigest) {
+        if (!entry.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(entry, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                    !Build.FINGERPRINT.equals(readString(buffer))) {
+                Log.i(TAG, "stale cache format. entry: " + entry.getName());
+                entry.delete();
+                return null;
+            }
+
+            long size = buffer.getLong();
+            long mtime = buffer.getLong();
+            String digest = readString(buffer);
+            if (size != apkFile.length()) {
+                entry.delete();
+                return null;
+            }
+            // Same size but touched: only trust the entry if the content is unchanged.
+            boolean touched = mtime != apkFile.lastModified();
+            if (knownDigest != null ? !digest.equals(knownDigest)
+                    : touched && !digest.equals(ApkDigest.compute(apkFile))) {
+                entry.delete();
+                return null;
+            }
+
+            byte[] payload = new byte[buffer.getInt()];
+            buffer.get(payload);
+            ParsedPackage parsed = unmarshall(payload);
+            if (parsed == null) {
+                entry.delete();
+                return null;
+            }
+            parsed.setDigest(digest);
+
+            if (touched) {
+                write(entry, apkFile, parsed);
+            }
+            return parsed;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "read cache failed. reason: " + e.getMessage());
+            entry.delete();
+        }
+
+        return null;
+    }
+
+    private void write(File entry, File apkFile, ParsedPackage parsed) throws IOException {
+        byte[] payload = marshall(parsed);
+
+        File tmp = new File(entry.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, Build.FINGERPRINT);
+            out.writeLong(apkFile.length());
+            out.writeLong(apkFile.lastModified());
+            writeString(out, parsed.getDigest());
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(entry)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + entry);
+        }
+    }
+
+    private static byte[] marshall(ParsedPackage parsed) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(parsed.getPackageInfo(), 0);
+            ActivityInfo launcher = parsed.getLauncherActivity();
+            parcel.writeString(launcher != null ? launcher.name : null);
+            ActivityInfo[] activities = parsed.getActivities();
+            parcel.writeInt(activities.length);
+            for (ActivityInfo info : activities) {
+                parcel.writeString(info.name);
+                parcel.writeTypedList(parsed.getIntentFilters(info.name));
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static ParsedPackage unmarshall(byte[] payload) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(payload, 0, payload.length);
+            parcel.setDataPosition(0);
+
+            PackageInfo packageInfo = parcel.readParcelable(PackageInfo.class.getClassLoader());
+            String launcherName = parcel.readString();
+            int count = parcel.readInt();
+            Map<String, List<IntentFilter>> intentFilters = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = parcel.readString();
+                intentFilters.put(name, parcel.createTypedArrayList(IntentFilter.CREATOR));
+            }
+            if (packageInfo == null || packageInfo.activities == null) {
+                return null;
+            }
+
+            ParsedPackage parsed = new ParsedPackage(packageInfo, null, intentFilters);
+            if (launcherName != null) {
+                parsed.setLauncherActivity(parsed.getActivityInfo(launcherName));
+            }
+            return parsed;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Native libraries of plugins, taken from {@code lib/<abi>/} for the best ABI this process
+ * supports. When all of them are stored uncompressed and page-aligned, they are loaded straight
+ * from the APK through an {@code <apk>!/lib/<abi>} search path. Otherwise they are extracted in
+ * parallel to {@code app_lib/<package>/<digest>/}, which is reused until the APK changes.
+ */
+public class NativeLibraries {
+    private static final String TAG = "NativeLibraries";
+
+    private static final String DIR_NAME = "lib";
+    private static final String LIB_PREFIX = "lib/";
+    private static final String LIB_SUFFIX = ".so";
+    // Written once every library of a digest has been extracted.
+    private static final String COMPLETE_MARKER = ".complete";
+
+    // What zipalign -p aligns uncompressed libraries to.
+    private static final int PAGE_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+
+    private File mRoot;
+    private Executor mExecutor;
+
+    private static class LibEntry {
+        final String name;
+        final int method;
+        final long localHeaderOffset;
+
+        LibEntry(String name, int method, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    public NativeLibraries(Context context, Executor executor) {
+        mRoot = context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the native library search path for {@code apkFile}, extracting the libraries first
+     * if they can't be loaded from the APK, or null if it has none for this process. Blocks.
+     */
+    public String getSearchPath(File apkFile, ParsedPackage parsed) throws IOException {
+        Map<String, List<LibEntry>> libs = readLibEntries(apkFile);
+        String abi = selectAbi(libs);
+        if (abi == null) {
+            return null;
+        }
+
+        List<LibEntry> entries = libs.get(abi);
+        if (isMappable(apkFile, entries)) {
+            return apkFile.getPath() + "!/" + LIB_PREFIX + abi;
+        }
+
+        File packageDir = new File(mRoot, parsed.getPackageName());
+        File dir = new File(packageDir, parsed.getDigest());
+        removeStale(packageDir, dir);
+        File marker = new File(dir, COMPLETE_MARKER);
+        if (!marker.exists()) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("create lib dir failed: " + dir);
+            }
+            extract(apkFile, entries, dir);
+            if (!marker.createNewFile() && !marker.exists()) {
+                throw new IOException("create marker failed: " + marker);
+            }
+            Log.i(TAG, "libraries extracted. package: " + parsed.getPackageName() + ", abi: " + abi +
+                    ", count: " + entries.size());
+        }
+        return dir.getPath();
+    }
+
+    public void remove(String packageName) {
+        delete(new File(mRoot, packageName));
+    }
+
+    // Directories of older digests of a package.
+    private static void removeStale(File packageDir, File current) {
+        File[] dirs = packageDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.equals(current)) {
+                    delete(dir);
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String selectAbi(Map<String, List<LibEntry>> libs) {
+        if (libs.isEmpty()) {
+            return null;
+        }
+        // The process can only load libraries of its own bitness.
+        String[] abis = Process.is64Bit() ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
+        for (String abi : abis) {
+            if (libs.containsKey(abi)) {
+                return abi;
+            }
+        }
+        return null;
+    }
+
+    private void extract(File apkFile, List<LibEntry> entries, final File dir) throws IOException {
+        try (final ZipFile zip = new ZipFile(apkFile)) {
+            List<Callable<Void>> tasks = new ArrayList<>(entries.size());
+            for (final LibEntry entry : entries) {
+                tasks.add(() -> {
+                    extract(zip, entry, dir);
+                    return null;
+                });
+            }
+            ParallelTasks.run(mExecutor, tasks);
+        }
+    }
+
+    private static void extract(ZipFile zip, LibEntry entry, File dir) throws IOException {
+        ZipEntry zipEntry = zip.getEntry(entry.name);
+        if (zipEntry == null) {
+            throw new ZipException("missing entry: " + entry.name);
+        }
+
+        File file = new File(dir, entry.name.substring(entry.name.lastIndexOf('/') + 1));
+        File tmp = new File(file.getPath() + ".tmp");
+        try (InputStream in = zip.getInputStream(zipEntry);
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    private static boolean isMappable(File apkFile, List<LibEntry> entries) throws IOException {
+        for (LibEntry entry : entries) {
+            if (entry.method != METHOD_STORED) {
+                return false;
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(apkFile, "r")) {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            for (LibEntry entry : entries) {
+                raf.seek(entry.localHeaderOffset);
+                raf.readFully(header);
+                ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+                        (buffer.getShort(26) & 0xffff) + (buffer.getShort(28) & 0xffff);
+                if (dataOffset % PAGE_SIZE != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists the libraries of each ABI from the zip central directory. ZipEntry doesn't expose
+     * where an entry's data starts, which is what decides whether it can be mapped in place.
+     */
+    private static Map<String, List<LibEntry>> readLibEntries(File apkFile) throws IOException {
+        Map<String, List<LibEntry>> libs = new HashMap<>();
+        try (RandomAccessFile raf = new RandomAccessFile(apkFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            // The end of central directory record may be followed by a comment of up to 64 KiB.
+            int tailSize = (int) Math.min(size, EOCD_SIZE + 0xffff);
+            ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - tailSize, tailSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new ZipException("end of central directory not found: " + apkFile);
+            }
+
+            long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (cd.remaining() >= CENTRAL_HEADER_SIZE && cd.getInt(cd.position()) == CENTRAL_HEADER_SIGNATURE) {
+                int pos = cd.position();
+                int method = cd.getShort(pos + 10) & 0xffff;
+                int nameLength = cd.getShort(pos + 28) & 0xffff;
+                int extraLength = cd.getShort(pos + 30) & 0xffff;
+                int commentLength = cd.getShort(pos + 32) & 0xffff;
+                long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+
+                byte[] nameBytes = new byte[nameLength];
+                cd.position(pos + CENTRAL_HEADER_SIZE);
+                cd.get(nameBytes);
+                cd.position(pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength);
+
+                // lib/<abi>/<name>.so, nothing nested deeper.
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                int slash = name.indexOf('/', LIB_PREFIX.length());
+                if (name.startsWith(LIB_PREFIX) && name.endsWith(LIB_SUFFIX) && slash > 0 &&
+                        name.indexOf('/', slash + 1) < 0) {
+                    String abi = name.substring(LIB_PREFIX.length(), slash);
+                    List<LibEntry> entries = libs.get(abi);
+                    if (entries == null) {
+                        entries = new ArrayList<>();
+                        libs.put(abi, entries);
+                    }
+                    entries.add(new LibEntry(name, method, localHeaderOffset));
+                }
+            }
+        }
+        return libs;
+    }
+}
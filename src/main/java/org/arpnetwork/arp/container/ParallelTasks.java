@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs independent tasks on an executor. The calling thread runs every task the executor hasn't
+ * started yet itself, so waiting never depends on a free pool thread, even on a pool the caller
+ * is part of.
+ */
+class ParallelTasks {
+    static void run(Executor executor, List<? extends Callable<?>> callables) throws IOException {
+        List<FutureTask<?>> tasks = new ArrayList<>(callables.size());
+        for (Callable<?> callable : callables) {
+            FutureTask<?> task = new FutureTask<>(callable);
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        for (FutureTask<?> task : tasks) {
+            // No-op if a pool thread has already started it.
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
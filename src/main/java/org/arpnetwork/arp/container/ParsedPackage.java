@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.util.Log;
+
+import org.arpnetwork.arp.container.reflect.Framework;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ParsedPackage {
+    private static final String TAG = "ParsedPackage";
+
+    // Same flags as PackageManager.getPackageArchiveInfo() uses when the caller
+    // doesn't ask for a specific direct boot awareness. Meta-data is kept for the
+    // package manager queries of plugin components.
+    private static final int PACKAGE_INFO_FLAGS = PackageManager.GET_ACTIVITIES | PackageManager.GET_META_DATA |
+            PackageManager.MATCH_DIRECT_BOOT_AWARE | PackageManager.MATCH_DIRECT_BOOT_UNAWARE;
+
+    private PackageInfo mPackageInfo;
+    private ActivityInfo mLauncherActivity;
+    private Map<String, List<IntentFilter>> mIntentFilters;
+    private volatile HashMap<String, ActivityInfo> mActivityIndex;
+    private String mDigest;
+    private String mSigner;
+    private volatile IntentIndex mIntentIndex;
+
+    ParsedPackage(PackageInfo packageInfo, ActivityInfo launcherActivity,
+            Map<String, List<IntentFilter>> intentFilters) {
+        mPackageInfo = packageInfo;
+        mLauncherActivity = launcherActivity;
+        mIntentFilters = intentFilters;
+        mActivityIndex = buildActivityIndex(packageInfo.activities);
+    }
+
+    public static ParsedPackage parse(File apkFile) {
+        return parse(apkFile, new LoadTimings(null));
+    }
+
+    static ParsedPackage parse(File apkFile, LoadTimings timings) {
+        return parse(apkFile, timings, false);
+    }
+
+    /**
+     * Same as {@link #parse(File, LoadTimings)}, and verifies the APK's signatures on the same
+     * parsed package. Returns null if they don't verify.
+     */
+    static ParsedPackage parseVerified(File apkFile, LoadTimings timings) {
+        return parse(apkFile, timings, true);
+    }
+
+    private static ParsedPackage parse(File apkFile, LoadTimings timings, boolean collectCertificates) {
+        try {
+            Framework.verify();
+
+            Object packageObj;
+            PackageInfo packageInfo;
+            long begin = timings.begin(LoadTimings.Stage.PARSE_ARCHIVE);
+            try {
+                Object packageParser = Framework.PACKAGE_PARSER_CONSTRUCTOR.newInstance();
+                packageObj = Framework.PACKAGE_PARSER_PARSE_PACKAGE.invoke(packageParser, apkFile, 0);
+                if (collectCertificates) {
+                    // Fails with an InvocationTargetException wrapping PackageParserException.
+                    // Static since O, an instance method before.
+                    Framework.PACKAGE_PARSER_COLLECT_CERTIFICATES.invoke(packageParser, packageObj, 0);
+                }
+
+                // PackageParser.generatePackageInfo(p, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissions, state)
+                Object state = Framework.PACKAGE_USER_STATE_CONSTRUCTOR.newInstance();
+                int flags = collectCertificates ? PACKAGE_INFO_FLAGS | PackageManager.GET_SIGNATURES
+                        : PACKAGE_INFO_FLAGS;
+                packageInfo = (PackageInfo) Framework.PACKAGE_PARSER_GENERATE_PACKAGE_INFO.invokeStatic(
+                        packageObj, null, flags, 0L, 0L, null, state);
+            } finally {
+                timings.end(LoadTimings.Stage.PARSE_ARCHIVE, begin);
+            }
+            if (packageInfo == null || packageInfo.activities == null) {
+                return null;
+            }
+
+            begin = timings.begin(LoadTimings.Stage.RESOLVE_LAUNCHER);
+            Map<String, List<IntentFilter>> intentFilters = new HashMap<>();
+            String launcherName = null;
+            List activities = (List) Framework.PACKAGE_ACTIVITIES.get(packageObj);
+            for (Object data : activities) {
+                ActivityInfo info = (ActivityInfo) Framework.ACTIVITY_INFO_OF_COMPONENT.get(data);
+                List<IntentFilter> filters = (List<IntentFilter>) Framework.COMPONENT_INTENTS.get(data);
+                intentFilters.put(info.name, copyOf(filters));
+
+                if (launcherName == null && isLauncher(filters)) {
+                    launcherName = info.name;
+                }
+            }
+
+            // Only the signer is kept, the metadata cache doesn't need the certificates.
+            String signer = getSigner(packageInfo.signatures);
+            packageInfo.signatures = null;
+
+            ParsedPackage parsed = new ParsedPackage(packageInfo, null, intentFilters);
+            parsed.mSigner = signer;
+            if (launcherName != null) {
+                parsed.setLauncherActivity(parsed.getActivityInfo(launcherName));
+            }
+            timings.end(LoadTimings.Stage.RESOLVE_LAUNCHER, begin);
+            return parsed;
+        } catch (ReflectiveOperationException e) {
+            Log.e(TAG, "parse package failed. reason: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    public String getPackageName() {
+        return mPackageInfo.packageName;
+    }
+
+    public PackageInfo getPackageInfo() {
+        return mPackageInfo;
+    }
+
+    public ActivityInfo[] getActivities() {
+        return mPackageInfo.activities;
+    }
+
+    public ActivityInfo getLauncherActivity() {
+        return mLauncherActivity;
+    }
+
+    public String getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * Returns the digest of the signing certificates, or null unless the package came from
+     * {@link #parseVerified(File, LoadTimings)}.
+     */
+    String getSigner() {
+        return mSigner;
+    }
+
+    public ActivityInfo getActivityInfo(String className) {
+        HashMap<String, ActivityInfo> index = mActivityIndex;
+        if (index == null) {
+            // Racing threads build equal indexes, either one will do.
+            index = buildActivityIndex(mPackageInfo.activities);
+            mActivityIndex = index;
+        }
+        return index.get(className);
+    }
+
+    public List<IntentFilter> getIntentFilters(String className) {
+        List<IntentFilter> filters = mIntentFilters.get(className);
+        return filters != null ? filters : Collections.<IntentFilter>emptyList();
+    }
+
+    /**
+     * Returns the index of this package's intent filters, built on first use.
+     */
+    IntentIndex getIntentIndex() {
+        IntentIndex index = mIntentIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = mIntentIndex;
+                if (index == null) {
+                    index = new IntentIndex(this);
+                    mIntentIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drops the component indexes, they are rebuilt on next use.
+     */
+    void trimIndexes() {
+        mActivityIndex = null;
+        mIntentIndex = null;
+    }
+
+    void setDigest(String digest) {
+        mDigest = digest;
+    }
+
+    void setLauncherActivity(ActivityInfo info) {
+        mLauncherActivity = info;
+    }
+
+    private static HashMap<String, ActivityInfo> buildActivityIndex(ActivityInfo[] activities) {
+        HashMap<String, ActivityInfo> index = new HashMap<>(activities.length * 4 / 3 + 1);
+        for (ActivityInfo info : activities) {
+            index.put(info.name, info);
+        }
+        return index;
+    }
+
+    // Independent of the order the certificates are listed in.
+    private static String getSigner(Signature[] signatures) {
+        if (signatures == null || signatures.length == 0) {
+            return null;
+        }
+
+        String[] digests = new String[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            MessageDigest md = ApkDigest.newMessageDigest();
+            digests[i] = ApkDigest.toHex(md.digest(signatures[i].toByteArray()));
+        }
+        Arrays.sort(digests);
+        MessageDigest md = ApkDigest.newMessageDigest();
+        for (String digest : digests) {
+            md.update(digest.getBytes());
+        }
+        return ApkDigest.toHex(md.digest());
+    }
+
+    // PackageParser.ActivityIntentInfo keeps the whole parsed package reachable, keep plain copies.
+    private static List<IntentFilter> copyOf(List<IntentFilter> filters) {
+        List<IntentFilter> copies = new ArrayList<>(filters.size());
+        for (IntentFilter filter : filters) {
+            copies.add(new IntentFilter(filter));
+        }
+        return copies;
+    }
+
+    private static boolean isLauncher(List<IntentFilter> filters) {
+        for (IntentFilter filter : filters) {
+            if (filter.hasAction(Intent.ACTION_MAIN) && filter.hasCategory(Intent.CATEGORY_LAUNCHER)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
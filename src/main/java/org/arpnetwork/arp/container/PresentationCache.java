@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.pm.ComponentInfo;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Themes and labels resolved for a plugin's activities. Everything is derived from the plugin's
+ * resources and the host theme, and is dropped as soon as the configuration changes.
+ */
+class PresentationCache {
+    private App mApp;
+
+    private Configuration mConfiguration;
+    private Resources.Theme mBaseTheme;
+
+    private SparseArray<Resources.Theme> mThemes = new SparseArray<>();
+    private HashMap<String, CharSequence> mLabels = new HashMap<>();
+
+    PresentationCache(App app) {
+        mApp = app;
+    }
+
+    /**
+     * Returns a new theme for an activity, copied from a cached template that already has the
+     * host theme and {@code themeRes} applied. Activities may mutate their theme with setTheme(),
+     * so the template itself is never handed out.
+     */
+    synchronized Resources.Theme newTheme(int themeRes, Resources.Theme baseTheme, Configuration config) {
+        validate(config);
+        if (mBaseTheme != baseTheme) {
+            mThemes.clear();
+            mBaseTheme = baseTheme;
+        }
+
+        Resources resources = mApp.getResources(config);
+        Resources.Theme template = mThemes.get(themeRes);
+        if (template == null) {
+            template = resources.newTheme();
+            template.setTo(baseTheme);
+            if (themeRes > 0) {
+                template.applyStyle(themeRes, true);
+            }
+            mThemes.put(themeRes, template);
+        }
+
+        Resources.Theme theme = resources.newTheme();
+        theme.setTo(template);
+        return theme;
+    }
+
+    synchronized CharSequence getLabel(ComponentInfo info, Configuration config) {
+        validate(config);
+
+        CharSequence label = mLabels.get(info.name);
+        if (label == null) {
+            label = mApp.loadLabel(info, config);
+            mLabels.put(info.name, label);
+        }
+        return label;
+    }
+
+    synchronized void clear() {
+        mThemes.clear();
+        mLabels.clear();
+        mConfiguration = null;
+        mBaseTheme = null;
+    }
+
+    private void validate(Configuration config) {
+        if (mConfiguration == null || mConfiguration.diff(config) != 0) {
+            mThemes.clear();
+            mLabels.clear();
+            mConfiguration = new Configuration(config);
+        }
+    }
+}
@@ -16,16 +16,23 @@
 
 package org.arpnetwork.arp.container.proxy;
 
+import android.content.ComponentName;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
 
-import org.apache.commons.lang3.reflect.FieldUtils;
+import org.arpnetwork.arp.container.App;
+import org.arpnetwork.arp.container.AppActivity;
+import org.arpnetwork.arp.container.AppManager;
+import org.arpnetwork.arp.container.CallMetrics;
 import org.arpnetwork.arp.container.Hook;
+import org.arpnetwork.arp.container.reflect.Framework;
 
 public class ActivityThreadHandlerCallback implements Handler.Callback {
     private static final int LAUNCH_ACTIVITY = 100;
 
+    private static final CallMetrics.Recorder sLaunchRecorder = CallMetrics.forMethod("ActivityThread#LAUNCH_ACTIVITY");
+
     private Handler mBase;
 
     public ActivityThreadHandlerCallback(Handler base) {
@@ -34,18 +41,61 @@ public class ActivityThreadHandlerCallback implements Handler.Callback {
 
     @Override
     public boolean handleMessage(Message msg) {
-        if (msg.what == LAUNCH_ACTIVITY) {
-            try {
-                // Replace target intent
-                Intent intent = (Intent) FieldUtils.readField(msg.obj, "intent", true);
-                Intent target = intent.getParcelableExtra(Hook.EXTRA_TARGET_INTENT);
-                intent.setComponent(target.getComponent());
-            } catch (IllegalAccessException e) {
-            }
+        if (msg.what != LAUNCH_ACTIVITY) {
+            mBase.handleMessage(msg);
+            return true;
         }
 
+        long begin = System.nanoTime();
+        Intent intent = (Intent) Framework.ACTIVITY_CLIENT_RECORD_INTENT.get(msg.obj);
+        App app = restoreTargetIntent(msg.obj, intent);
+
         mBase.handleMessage(msg);
 
+        long duration = System.nanoTime() - begin;
+        sLaunchRecorder.record(duration);
+        if (app != null) {
+            CallMetrics.forPackage(app.getPackageName()).record(duration);
+        }
         return true;
     }
+
+    /**
+     * Returns the plugin being launched, or null for host activities.
+     */
+    private static App restoreTargetIntent(Object record, Intent intent) {
+        // Host activities may carry extras only the host's class loader can unparcel, which
+        // ActivityThread sets later on. Their extras must not be touched here.
+        ComponentName stub = intent.getComponent();
+        if (stub == null || !AppActivity.class.getName().equals(stub.getClassName())) {
+            return null;
+        }
+
+        long token = intent.getLongExtra(Hook.EXTRA_TARGET_TOKEN, PendingLaunches.NO_TOKEN);
+        if (token == PendingLaunches.NO_TOKEN) {
+            return null;
+        }
+
+        App app = null;
+        Intent target = PendingLaunches.take(token);
+        if (target != null) {
+            app = AppManager.getByActivity(target.getComponent());
+            if (app != null) {
+                target.setExtrasClassLoader(app.getClassLoader());
+            }
+            // The flags as delivered, including those the system added.
+            target.setFlags(intent.getFlags());
+            Framework.ACTIVITY_CLIENT_RECORD_INTENT.set(record, target);
+        } else {
+            // Expired, or the process was restarted and the system is recreating the activity:
+            // all that is left is the component.
+            String component = intent.getStringExtra(Hook.EXTRA_TARGET_COMPONENT);
+            if (component != null) {
+                ComponentName componentName = ComponentName.unflattenFromString(component);
+                intent.setComponent(componentName);
+                app = AppManager.getByActivity(componentName);
+            }
+        }
+        return app;
+    }
 }
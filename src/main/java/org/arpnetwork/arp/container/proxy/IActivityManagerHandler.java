@@ -17,41 +17,94 @@
 package org.arpnetwork.arp.container.proxy;
 
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 
+import org.arpnetwork.arp.container.App;
 import org.arpnetwork.arp.container.AppActivity;
+import org.arpnetwork.arp.container.AppManager;
+import org.arpnetwork.arp.container.CallMetrics;
 import org.arpnetwork.arp.container.Hook;
 
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.List;
 
-public class IActivityManagerHandler implements InvocationHandler {
-    private Object mBase;
+public class IActivityManagerHandler extends ProxyHandler {
+    private static final int START_ACTIVITY = 0;
 
-    public IActivityManagerHandler(Object base) {
-        mBase = base;
+    private String mHostPackageName;
+
+    public IActivityManagerHandler(Context context, Object base, Class<?> activityManagerInterface) {
+        super(base, activityManagerInterface);
+        mHostPackageName = context.getPackageName();
+
+        // (..., Intent intent, String resolvedType, IBinder resultTo, ...)
+        intercept("startActivity", START_ACTIVITY, Intent.class);
     }
 
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        if (method.getName().equals("startActivity")) {
-            int index = 0;
-            for (int i = 0; i < args.length; i++) {
-                if (args[i] instanceof Intent) {
-                    index = i;
-                    break;
-                }
+    protected Object dispatch(Target target, Method method, Object[] args, long begin) throws Throwable {
+        App app = null;
+        if (target.code == START_ACTIVITY) {
+            Intent raw = (Intent) args[target.argIndex];
+            ComponentName component = raw != null ? raw.getComponent() : null;
+            if (raw != null && component == null && isPluginScoped(raw)) {
+                // Resolve intents scoped to a plugin package the way the package manager hook
+                // answers them, so that what resolveActivity() reports is also what gets started.
+                // Other implicit intents are the system's to resolve, plugins don't capture them.
+                raw = resolveLocal(raw, args, target.argIndex);
+                component = raw.getComponent();
+            }
+            // Host components and unmatched implicit intents go to the system untouched.
+            app = component != null ? AppManager.getByActivity(component) : null;
+            if (app != null) {
+                Intent newIntent = new Intent();
+                // The stub is declared by the host, whichever package the caller named.
+                ComponentName componentName = new ComponentName(mHostPackageName,
+                        AppActivity.class.getCanonicalName());
+                newIntent.setComponent(componentName);
+                // The launch flags are for the system.
+                newIntent.setFlags(raw.getFlags());
+                // Keep a copy of the original with all its extras in process, only a token goes
+                // to the system. The caller may reuse its intent once startActivity() returns.
+                newIntent.putExtra(Hook.EXTRA_TARGET_TOKEN, PendingLaunches.put(new Intent(raw)));
+                newIntent.putExtra(Hook.EXTRA_TARGET_COMPONENT, component.flattenToShortString());
+                args[target.argIndex] = newIntent;
+            }
+        }
+
+        try {
+            return invokeBase(method, args);
+        } finally {
+            if (app != null) {
+                CallMetrics.forPackage(app.getPackageName()).record(System.nanoTime() - begin);
             }
-            Intent raw = (Intent) args[index];
-
-            Intent newIntent = new Intent();
-            String pkg = raw.getComponent().getPackageName();
-            ComponentName componentName = new ComponentName(pkg, AppActivity.class.getCanonicalName());
-            newIntent.setComponent(componentName);
-            newIntent.putExtra(Hook.EXTRA_TARGET_INTENT, raw);
-            args[index] = newIntent;
+        }
+    }
+
+    private static boolean isPluginScoped(Intent intent) {
+        return intent.getPackage() != null && AppManager.get(intent.getPackage()) != null;
+    }
+
+    /**
+     * Returns a copy of {@code intent} targeting the highest priority matching plugin activity,
+     * or {@code intent} itself when no plugin activity matches.
+     */
+    private static Intent resolveLocal(Intent intent, Object[] args, int intentIndex) {
+        Object type = intentIndex + 1 < args.length ? args[intentIndex + 1] : null;
+        String resolvedType = type instanceof String ? (String) type : null;
+        List<ResolveInfo> matches = AppManager.queryIntentActivities(intent, resolvedType,
+                PackageManager.MATCH_DEFAULT_ONLY);
+        if (matches.isEmpty()) {
+            return intent;
         }
 
-        return method.invoke(mBase, args);
+        ActivityInfo info = matches.get(0).activityInfo;
+        Intent resolved = new Intent(intent);
+        resolved.setComponent(new ComponentName(info.packageName, info.name));
+        return resolved;
     }
 }
@@ -17,33 +17,205 @@
 package org.arpnetwork.arp.container.proxy;
 
 import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
 
 import org.arpnetwork.arp.container.App;
+import org.arpnetwork.arp.container.AppManager;
+import org.arpnetwork.arp.container.CallMetrics;
+import org.arpnetwork.arp.container.reflect.Framework;
 
-import java.lang.ref.WeakReference;
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-public class IPackageManagerHandler implements InvocationHandler {
-    private Object mBase;
-    private WeakReference<App> mApp;
+/**
+ * Answers queries about plugin packages and components from {@link AppManager}, and passes
+ * everything else to the system PackageManager.
+ */
+public class IPackageManagerHandler extends ProxyHandler {
+    private static final int GET_ACTIVITY_INFO = 0;
+    private static final int GET_PACKAGE_INFO = 1;
+    private static final int GET_APPLICATION_INFO = 2;
+    private static final int RESOLVE_INTENT = 3;
+    private static final int QUERY_INTENT_ACTIVITIES = 4;
+
+    // Flags the parsed package can answer. Anything else, e.g. GET_SIGNATURES, is left to the
+    // system.
+    private static final long SUPPORTED_FLAGS = PackageManager.GET_ACTIVITIES | PackageManager.GET_META_DATA |
+            PackageManager.MATCH_DISABLED_COMPONENTS | PackageManager.MATCH_UNINSTALLED_PACKAGES |
+            PackageManager.MATCH_DIRECT_BOOT_AWARE | PackageManager.MATCH_DIRECT_BOOT_UNAWARE;
+
+    public IPackageManagerHandler(Object base, Class<?> packageManagerInterface) {
+        super(base, packageManagerInterface);
 
-    public IPackageManagerHandler(Object base, App app) {
-        mBase = base;
-        mApp = new WeakReference<>(app);
+        intercept("getActivityInfo", GET_ACTIVITY_INFO, ComponentName.class);
+        intercept("getPackageInfo", GET_PACKAGE_INFO, String.class);
+        intercept("getApplicationInfo", GET_APPLICATION_INFO, String.class);
+        // (Intent intent, String resolvedType, int flags, int userId)
+        intercept("resolveIntent", RESOLVE_INTENT, Intent.class);
+        intercept("queryIntentActivities", QUERY_INTENT_ACTIVITIES, Intent.class);
     }
 
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        if (method.getName().equals("getActivityInfo")) {
-            ComponentName componentName = (ComponentName) args[0];
+    protected Object dispatch(Target target, Method method, Object[] args, long begin) throws Throwable {
+        switch (target.code) {
+            case GET_ACTIVITY_INFO: {
+                ComponentName componentName = (ComponentName) args[target.argIndex];
+                App app = componentName != null ? AppManager.getByActivity(componentName) : null;
+                if (app != null) {
+                    ActivityInfo info = app.getActivityInfo(componentName);
+                    // The system has never heard of plugin components, so these are answered here
+                    // whatever the flags ask for. Support libraries ask for GET_META_DATA in every
+                    // activity's onCreate().
+                    if (info != null) {
+                        record(app, begin);
+                        return copyOf(info, getFlags(args, target.argIndex));
+                    }
+                }
+                break;
+            }
+
+            case GET_PACKAGE_INFO:
+            case GET_APPLICATION_INFO: {
+                String packageName = (String) args[target.argIndex];
+                App app = packageName != null ? AppManager.get(packageName) : null;
+                PackageInfo info = app != null ? app.getPackageInfo() : null;
+                if (info != null && isSupported(args, target.argIndex)) {
+                    record(app, begin);
+                    // Callers own what they get back, never hand out the cached objects.
+                    long flags = getFlags(args, target.argIndex);
+                    return target.code == GET_PACKAGE_INFO
+                            ? copyOf(info, flags) : copyOf(info.applicationInfo, flags);
+                }
+                break;
+            }
+
+            case RESOLVE_INTENT: {
+                Intent intent = (Intent) args[target.argIndex];
+                // Only intents scoped to a plugin are answered here, like startActivity() starts
+                // them. Where the system would show a chooser, the highest priority activity wins.
+                if (isPluginScoped(intent)) {
+                    List<ResolveInfo> local = queryLocal(intent, args, target.argIndex);
+                    return !local.isEmpty() ? local.get(0) : null;
+                }
+                break;
+            }
+
+            case QUERY_INTENT_ACTIVITIES: {
+                Intent intent = (Intent) args[target.argIndex];
+                List<ResolveInfo> local = queryLocal(intent, args, target.argIndex);
+                if (isPluginScoped(intent)) {
+                    return toResult(method, local);
+                }
+                if (!local.isEmpty()) {
+                    // Implicit intents may also match host or system activities.
+                    List<ResolveInfo> results = new ArrayList<>(toList(invokeBase(method, args)));
+                    results.addAll(local);
+                    return toResult(method, results);
+                }
+                break;
+            }
+        }
+
+        return invokeBase(method, args);
+    }
+
+    private static List<ResolveInfo> queryLocal(Intent intent, Object[] args, int intentIndex) {
+        if (intent == null) {
+            return Collections.emptyList();
+        }
+        String resolvedType = (String) args[intentIndex + 1];
+        int flags = ((Number) args[intentIndex + 2]).intValue();
+        return AppManager.queryIntentActivities(intent, resolvedType, flags);
+    }
+
+    // (String packageName | ComponentName component, int flags | long flags, int userId)
+    private static long getFlags(Object[] args, int nameIndex) {
+        return ((Number) args[nameIndex + 1]).longValue();
+    }
+
+    private static boolean isSupported(Object[] args, int nameIndex) {
+        return (getFlags(args, nameIndex) & ~SUPPORTED_FLAGS) == 0;
+    }
 
-            App app = mApp.get();
-            if (app != null) {
-                return app.getActivityInfo(componentName.getClassName());
+    private static PackageInfo copyOf(PackageInfo info, long flags) {
+        PackageInfo copy = new PackageInfo();
+        copy.packageName = info.packageName;
+        copy.versionCode = info.versionCode;
+        copy.versionName = info.versionName;
+        copy.sharedUserId = info.sharedUserId;
+        copy.sharedUserLabel = info.sharedUserLabel;
+        copy.firstInstallTime = info.firstInstallTime;
+        copy.lastUpdateTime = info.lastUpdateTime;
+        copy.installLocation = info.installLocation;
+        copy.applicationInfo = copyOf(info.applicationInfo, flags);
+        if ((flags & PackageManager.GET_ACTIVITIES) != 0 && info.activities != null) {
+            copy.activities = new ActivityInfo[info.activities.length];
+            for (int i = 0; i < info.activities.length; i++) {
+                copy.activities[i] = copyOf(info.activities[i], copy.applicationInfo, flags);
             }
         }
+        return copy;
+    }
+
+    private static ActivityInfo copyOf(ActivityInfo info, long flags) {
+        return copyOf(info, copyOf(info.applicationInfo, flags), flags);
+    }
+
+    private static ActivityInfo copyOf(ActivityInfo info, ApplicationInfo applicationInfo, long flags) {
+        ActivityInfo copy = new ActivityInfo(info);
+        copy.applicationInfo = applicationInfo;
+        copy.metaData = copyOf(info.metaData, flags);
+        return copy;
+    }
+
+    private static ApplicationInfo copyOf(ApplicationInfo info, long flags) {
+        ApplicationInfo copy = new ApplicationInfo(info);
+        copy.metaData = copyOf(info.metaData, flags);
+        return copy;
+    }
+
+    private static Bundle copyOf(Bundle metaData, long flags) {
+        return metaData != null && (flags & PackageManager.GET_META_DATA) != 0 ? new Bundle(metaData) : null;
+    }
+
+    private static boolean isPluginScoped(Intent intent) {
+        if (intent == null) {
+            return false;
+        }
+        ComponentName component = intent.getComponent();
+        if (component != null) {
+            return AppManager.getByActivity(component) != null;
+        }
+        return intent.getPackage() != null && AppManager.get(intent.getPackage()) != null;
+    }
+
+    private static void record(App app, long begin) {
+        CallMetrics.forPackage(app.getPackageName()).record(System.nanoTime() - begin);
+    }
 
-        return method.invoke(mBase, args);
+    // Returned as a ParceledListSlice since API 24.
+    private static Object toResult(Method method, List<ResolveInfo> list) throws Throwable {
+        if (method.getReturnType().isAssignableFrom(List.class)) {
+            return list;
+        }
+        return Framework.PARCELED_LIST_SLICE_CONSTRUCTOR.newInstance(list);
+    }
+
+    private static List<ResolveInfo> toList(Object result) throws Throwable {
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        if (result instanceof List) {
+            return (List<ResolveInfo>) result;
+        }
+        return (List<ResolveInfo>) Framework.PARCELED_LIST_SLICE_GET_LIST.invoke(result);
     }
 }
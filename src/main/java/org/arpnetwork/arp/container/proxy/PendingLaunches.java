@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.proxy;
+
+import android.content.Intent;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Original intents of plugin launches that are on their way through the system server. Only
+ * the token crosses the process boundary; the intent is taken back at LAUNCH_ACTIVITY.
+ */
+class PendingLaunches {
+    static final long NO_TOKEN = -1;
+
+    // A launch that hasn't arrived by then was dropped by the system.
+    private static final long EXPIRY_MS = 60 * 1000;
+
+    // Tokens of an earlier process may still come back from the system, start from our pid.
+    private static final AtomicLong sNextToken = new AtomicLong((long) Process.myPid() << 32);
+    private static final ConcurrentHashMap<Long, Entry> sEntries = new ConcurrentHashMap<>();
+
+    static long put(Intent intent) {
+        long now = SystemClock.uptimeMillis();
+        purge(now);
+
+        long token = sNextToken.incrementAndGet();
+        sEntries.put(token, new Entry(intent, now + EXPIRY_MS));
+        return token;
+    }
+
+    static Intent take(long token) {
+        Entry entry = sEntries.remove(token);
+        return entry != null ? entry.intent : null;
+    }
+
+    private static void purge(long now) {
+        Iterator<Entry> it = sEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiry < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+        final Intent intent;
+        final long expiry;
+
+        Entry(Intent intent, long expiry) {
+            this.intent = intent;
+            this.expiry = expiry;
+        }
+    }
+}
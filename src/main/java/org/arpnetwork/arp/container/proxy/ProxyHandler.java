@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.proxy;
+
+import org.arpnetwork.arp.container.CallMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Base class for binder interface proxies. Every interface method is resolved once into a
+ * dispatch table, so a call costs a single hash lookup before it is either handled or passed
+ * through to the original object. Each method's latency goes to {@link CallMetrics}.
+ */
+abstract class ProxyHandler implements InvocationHandler {
+    static final int PASS_THROUGH = -1;
+
+    private Object mBase;
+    private HashMap<Method, Target> mDispatchTable = new HashMap<>();
+
+    static class Target {
+        final int code;
+        // Index of the argument of the type given to intercept(), or -1.
+        final int argIndex;
+        final CallMetrics.Recorder recorder;
+
+        Target(int code, int argIndex, CallMetrics.Recorder recorder) {
+            this.code = code;
+            this.argIndex = argIndex;
+            this.recorder = recorder;
+        }
+    }
+
+    ProxyHandler(Object base, Class<?> iface) {
+        mBase = base;
+
+        for (Method method : iface.getMethods()) {
+            CallMetrics.Recorder recorder = CallMetrics.forMethod(iface.getSimpleName() + "#" + method.getName());
+            mDispatchTable.put(method, new Target(PASS_THROUGH, -1, recorder));
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Target target = mDispatchTable.get(method);
+        if (target == null) {
+            // java.lang.Object methods
+            return invokeBase(method, args);
+        }
+
+        long begin = System.nanoTime();
+        try {
+            if (target.code == PASS_THROUGH) {
+                return invokeBase(method, args);
+            }
+            return dispatch(target, method, args, begin);
+        } finally {
+            target.recorder.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * Handles an intercepted call. {@code begin} is the System.nanoTime() the call started at.
+     */
+    protected abstract Object dispatch(Target target, Method method, Object[] args, long begin) throws Throwable;
+
+    /**
+     * Intercepts all overloads of {@code name} under {@code code}, remembering where each
+     * overload takes its first {@code argType} argument.
+     */
+    void intercept(String name, int code, Class<?> argType) {
+        for (Method method : mDispatchTable.keySet()) {
+            if (method.getName().equals(name)) {
+                int argIndex = indexOf(method.getParameterTypes(), argType);
+                if (argIndex >= 0) {
+                    Target target = mDispatchTable.get(method);
+                    mDispatchTable.put(method, new Target(code, argIndex, target.recorder));
+                }
+            }
+        }
+    }
+
+    Object invokeBase(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(mBase, args);
+        } catch (InvocationTargetException e) {
+            // Rethrow what the binder call threw (RemoteException, SecurityException, ...).
+            throw e.getCause();
+        }
+    }
+
+    private static int indexOf(Class<?>[] parameterTypes, Class<?> type) {
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (parameterTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
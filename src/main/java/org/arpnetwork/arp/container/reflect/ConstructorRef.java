@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.reflect;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+public class ConstructorRef {
+    private Constructor<?> mConstructor;
+
+    ConstructorRef(Constructor<?> constructor) {
+        mConstructor = constructor;
+    }
+
+    public Object newInstance(Object... args) throws InvocationTargetException {
+        try {
+            return mConstructor.newInstance(args);
+        } catch (IllegalAccessException | InstantiationException e) {
+            // Constructors are made accessible when they are resolved.
+            throw new IllegalStateException(e);
+        }
+    }
+}
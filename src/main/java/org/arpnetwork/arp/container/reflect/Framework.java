@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.reflect;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.ContextWrapper;
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.view.ContextThemeWrapper;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Private framework classes and members used by the container, resolved once when this class
+ * is initialized. Anything that could not be resolved is null and listed by {@link #verify()}.
+ */
+@SuppressLint("PrivateApi")
+public class Framework {
+    private static final List<String> sMissing = new ArrayList<>();
+
+    public static final Class<?> ACTIVITY_MANAGER = findClass("android.app.ActivityManager");
+    public static final Class<?> I_ACTIVITY_MANAGER = findClass("android.app.IActivityManager");
+    public static final Class<?> SINGLETON = findClass("android.util.Singleton");
+    public static final Class<?> ACTIVITY_THREAD = findClass("android.app.ActivityThread");
+    public static final Class<?> ACTIVITY_CLIENT_RECORD = findClass("android.app.ActivityThread$ActivityClientRecord");
+    public static final Class<?> I_PACKAGE_MANAGER = findClass("android.content.pm.IPackageManager");
+    public static final Class<?> PACKAGE_PARSER = findClass("android.content.pm.PackageParser");
+    public static final Class<?> PACKAGE_PARSER_PACKAGE = findClass("android.content.pm.PackageParser$Package");
+    public static final Class<?> PACKAGE_PARSER_COMPONENT = findClass("android.content.pm.PackageParser$Component");
+    public static final Class<?> PACKAGE_PARSER_ACTIVITY = findClass("android.content.pm.PackageParser$Activity");
+    public static final Class<?> PACKAGE_USER_STATE = findClass("android.content.pm.PackageUserState");
+    public static final Class<?> PARCELED_LIST_SLICE = findClass("android.content.pm.ParceledListSlice");
+
+    // android.app
+    public static final FieldRef ACTIVITY_MANAGER_SINGLETON = findField(ACTIVITY_MANAGER, "IActivityManagerSingleton");
+    public static final FieldRef SINGLETON_INSTANCE = findField(SINGLETON, "mInstance");
+    public static final FieldRef ACTIVITY_THREAD_CURRENT = findField(ACTIVITY_THREAD, "sCurrentActivityThread");
+    public static final FieldRef ACTIVITY_THREAD_PACKAGE_MANAGER = findField(ACTIVITY_THREAD, "sPackageManager");
+    public static final FieldRef ACTIVITY_THREAD_H = findField(ACTIVITY_THREAD, "mH");
+    public static final FieldRef ACTIVITY_CLIENT_RECORD_INTENT = findField(ACTIVITY_CLIENT_RECORD, "intent");
+    public static final FieldRef ACTIVITY_INFO = findField(Activity.class, "mActivityInfo");
+    public static final FieldRef CONTEXT_THEME_WRAPPER_RESOURCES = findField(ContextThemeWrapper.class, "mResources");
+    public static final FieldRef CONTEXT_THEME_WRAPPER_THEME = findField(ContextThemeWrapper.class, "mTheme");
+
+    // android.content
+    public static final FieldRef CONTEXT_WRAPPER_BASE = findField(ContextWrapper.class, "mBase");
+
+    // android.os
+    public static final FieldRef HANDLER_CALLBACK = findField(Handler.class, "mCallback");
+
+    // android.content.res
+    public static final MethodRef ASSET_MANAGER_ADD_ASSET_PATH = findMethod(AssetManager.class, "addAssetPath", String.class);
+
+    // android.content.pm
+    public static final ConstructorRef PACKAGE_PARSER_CONSTRUCTOR = findConstructor(PACKAGE_PARSER);
+    public static final MethodRef PACKAGE_PARSER_PARSE_PACKAGE = findMethod(PACKAGE_PARSER, "parsePackage", File.class, int.class);
+    public static final MethodRef PACKAGE_PARSER_GENERATE_PACKAGE_INFO = findMethod(PACKAGE_PARSER, "generatePackageInfo",
+            PACKAGE_PARSER_PACKAGE, int[].class, int.class, long.class, long.class, Set.class, PACKAGE_USER_STATE);
+    public static final MethodRef PACKAGE_PARSER_COLLECT_CERTIFICATES = findMethod(PACKAGE_PARSER, "collectCertificates",
+            PACKAGE_PARSER_PACKAGE, int.class);
+    public static final FieldRef PACKAGE_ACTIVITIES = findField(PACKAGE_PARSER_PACKAGE, "activities");
+    public static final FieldRef COMPONENT_INTENTS = findField(PACKAGE_PARSER_COMPONENT, "intents");
+    public static final FieldRef ACTIVITY_INFO_OF_COMPONENT = findField(PACKAGE_PARSER_ACTIVITY, "info");
+    public static final ConstructorRef PACKAGE_USER_STATE_CONSTRUCTOR = findConstructor(PACKAGE_USER_STATE);
+    public static final ConstructorRef PARCELED_LIST_SLICE_CONSTRUCTOR = findConstructor(PARCELED_LIST_SLICE, List.class);
+    public static final MethodRef PARCELED_LIST_SLICE_GET_LIST = findMethod(PARCELED_LIST_SLICE, "getList");
+
+    /**
+     * Fails with the full list of members this platform doesn't have, so that an incompatible
+     * release is detected before anything gets patched.
+     */
+    public static void verify() throws NoSuchFieldException {
+        synchronized (sMissing) {
+            if (!sMissing.isEmpty()) {
+                throw new NoSuchFieldException("missing framework members: " + sMissing);
+            }
+        }
+    }
+
+    private static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            missing(name);
+            return null;
+        }
+    }
+
+    private static FieldRef findField(Class<?> clazz, String name) {
+        Field field = clazz != null ? FieldUtils.getField(clazz, name, true) : null;
+        if (field == null) {
+            missing(clazz, name);
+            return null;
+        }
+        return new FieldRef(field);
+    }
+
+    private static MethodRef findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(name, parameterTypes);
+                method.setAccessible(true);
+                return new MethodRef(method);
+            } catch (NoSuchMethodException e) {
+                // Try the superclass.
+            }
+        }
+        missing(clazz, name);
+        return null;
+    }
+
+    private static ConstructorRef findConstructor(Class<?> clazz, Class<?>... parameterTypes) {
+        if (clazz != null) {
+            try {
+                Constructor<?> constructor = clazz.getDeclaredConstructor(parameterTypes);
+                constructor.setAccessible(true);
+                return new ConstructorRef(constructor);
+            } catch (NoSuchMethodException e) {
+                // Reported below.
+            }
+        }
+        missing(clazz, "<init>");
+        return null;
+    }
+
+    private static void missing(Class<?> clazz, String member) {
+        missing((clazz != null ? clazz.getName() : "?") + "." + member);
+    }
+
+    private static void missing(String name) {
+        synchronized (sMissing) {
+            sMissing.add(name);
+        }
+    }
+}
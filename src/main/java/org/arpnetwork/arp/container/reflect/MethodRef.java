@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.reflect;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+public class MethodRef {
+    private Method mMethod;
+
+    MethodRef(Method method) {
+        mMethod = method;
+    }
+
+    public Object invoke(Object receiver, Object... args) throws InvocationTargetException {
+        try {
+            return mMethod.invoke(receiver, args);
+        } catch (IllegalAccessException e) {
+            // Methods are made accessible when they are resolved.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Object invokeStatic(Object... args) throws InvocationTargetException {
+        return invoke(null, args);
+    }
+}
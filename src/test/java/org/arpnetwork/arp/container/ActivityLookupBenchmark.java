@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.pm.ActivityInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActivityLookupBenchmark {
+    @Param({"10", "100", "1000"})
+    public int activityCount;
+
+    private ParsedPackage mPackage;
+    private String mLastActivity;
+    private String mHostActivity;
+
+    @Setup
+    public void setUp() {
+        String packageName = SyntheticPlugins.packageName(0);
+        mPackage = SyntheticPlugins.newParsedPackage(packageName, activityCount);
+        mLastActivity = SyntheticPlugins.activityName(packageName, activityCount - 1);
+        mHostActivity = "org.arpnetwork.host.MainActivity";
+    }
+
+    @Benchmark
+    public ActivityInfo hit() {
+        return mPackage.getActivityInfo(mLastActivity);
+    }
+
+    @Benchmark
+    public ActivityInfo miss() {
+        return mPackage.getActivityInfo(mHostActivity);
+    }
+
+    @Benchmark
+    public ActivityInfo linearScanBaseline() {
+        for (ActivityInfo info : mPackage.getActivities()) {
+            if (info.name.equals(mLastActivity)) {
+                return info;
+            }
+        }
+        return null;
+    }
+}
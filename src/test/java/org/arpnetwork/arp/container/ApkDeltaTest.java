@@ -0,0 +1,85 @@
+package org.arpnetwork.arp.container;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ApkDeltaTest {
+    @Test
+    public void appliesCopiesAndInserts() throws IOException {
+        byte[] base = new byte[200_000];
+        new Random(1).nextBytes(base);
+        byte[] inserted = "new code".getBytes();
+
+        // target = base[0, 1000) + inserted + base[150000, 200000)
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(base, 0, 1000);
+        expected.write(inserted);
+        expected.write(base, 150_000, 50_000);
+
+        File baseFile = write(base);
+        File target = File.createTempFile("target", ".apk");
+        try {
+            String baseDigest = ApkDigest.compute(baseFile);
+            String targetDigest = digest(expected.toByteArray());
+            byte[] delta = delta(baseDigest, targetDigest, inserted);
+
+            String result = ApkDelta.apply(baseFile, baseDigest, new ByteArrayInputStream(delta), target);
+            assertEquals(targetDigest, result);
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(target.toPath()));
+
+            try {
+                ApkDelta.apply(baseFile, "other", new ByteArrayInputStream(delta), target);
+                fail();
+            } catch (IOException expectedFailure) {
+                // Delta made for another base.
+            }
+        } finally {
+            baseFile.delete();
+            target.delete();
+        }
+    }
+
+    private static byte[] delta(String baseDigest, String targetDigest, byte[] inserted) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ApkDelta.MAGIC);
+        out.writeInt(ApkDelta.VERSION);
+        out.writeUTF(baseDigest);
+        out.writeUTF(targetDigest);
+        out.writeByte(ApkDelta.OP_COPY);
+        out.writeLong(0);
+        out.writeInt(1000);
+        out.writeByte(ApkDelta.OP_INSERT);
+        out.writeInt(inserted.length);
+        out.write(inserted);
+        out.writeByte(ApkDelta.OP_COPY);
+        out.writeLong(150_000);
+        out.writeInt(50_000);
+        out.writeByte(ApkDelta.OP_END);
+        return bytes.toByteArray();
+    }
+
+    private static String digest(byte[] content) {
+        ApkDigest digest = new ApkDigest();
+        digest.update(content, 0, content.length);
+        return digest.digest();
+    }
+
+    private static File write(byte[] content) throws IOException {
+        File file = File.createTempFile("base", ".apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+}
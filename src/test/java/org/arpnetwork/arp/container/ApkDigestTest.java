@@ -0,0 +1,50 @@
+package org.arpnetwork.arp.container;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ApkDigestTest {
+    @Test
+    public void streamingMatchesParallel() throws IOException {
+        int[] sizes = {0, 1, ApkDigest.CHUNK_SIZE - 1, ApkDigest.CHUNK_SIZE, 3 * ApkDigest.CHUNK_SIZE + 17};
+        for (int size : sizes) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+
+            File file = File.createTempFile("digest", ".apk");
+            try {
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    out.write(content);
+                }
+
+                // Uneven writes, crossing chunk boundaries.
+                ApkDigest digest = new ApkDigest();
+                for (int offset = 0; offset < size; ) {
+                    int n = Math.min(size - offset, 100_003);
+                    digest.update(content, offset, n);
+                    offset += n;
+                }
+                assertEquals("size " + size, ApkDigest.compute(file), digest.digest());
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void contentChangesDigest() throws IOException {
+        byte[] content = new byte[ApkDigest.CHUNK_SIZE + 1];
+        ApkDigest a = new ApkDigest();
+        a.update(content, 0, content.length);
+        content[ApkDigest.CHUNK_SIZE] = 1;
+        ApkDigest b = new ApkDigest();
+        b.update(content, 0, content.length);
+        assertNotEquals(a.digest(), b.digest());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs the JMH benchmarks in this source set on the host JVM. Skipped unless requested:
+ * <pre>
+ * ./gradlew testDebugUnitTest --tests '*BenchmarkSuite' -Dbenchmark=.*
+ * </pre>
+ * The value of {@code benchmark} is a JMH include pattern. Runs on Robolectric, so the framework
+ * classes the benchmarks build (Intent, ComponentName, PackageInfo, ...) behave as on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class BenchmarkSuite {
+    @Test
+    public void run() throws Exception {
+        String include = System.getProperty("benchmark");
+        Assume.assumeTrue("benchmarks not requested", include != null && !include.isEmpty());
+
+        // The Gradle test worker's class path can't be reused by forked JVMs, run in process,
+        // inside the Robolectric sandbox this test runs in.
+        Options options = new OptionsBuilder()
+                .include(include)
+                .forks(0)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallMetricsBenchmark {
+    private CallMetrics.Recorder mRecorder = CallMetrics.forMethod("Benchmark#record");
+
+    @Benchmark
+    public void recordSingleThread() {
+        mRecorder.record(1500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        mRecorder.record(1500);
+    }
+
+    @Benchmark
+    public CallMetrics.Recorder lookupByPackage() {
+        return CallMetrics.forPackage("org.arpnetwork.synthetic.plugin0");
+    }
+}
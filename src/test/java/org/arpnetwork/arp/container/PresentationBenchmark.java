@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of activity labels through PresentationCache against App.loadLabel(), for labels that
+ * need no resources. Labels from the resource table need a packaged APK and are not covered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PresentationBenchmark {
+    private App mApp;
+    private PresentationCache mCache;
+    private ActivityInfo mActivity;
+    private Configuration mPortrait;
+    private Configuration mLandscape;
+    private boolean mRotated;
+
+    @Setup
+    public void setUp() {
+        String packageName = SyntheticPlugins.packageName(0);
+        mApp = SyntheticPlugins.newApp(RuntimeEnvironment.application, packageName, 100);
+        mCache = mApp.getPresentationCache();
+        mActivity = mApp.getActivityInfo(SyntheticPlugins.activityName(packageName, 99));
+
+        mPortrait = new Configuration(RuntimeEnvironment.application.getResources().getConfiguration());
+        mPortrait.orientation = Configuration.ORIENTATION_PORTRAIT;
+        mLandscape = new Configuration(mPortrait);
+        mLandscape.orientation = Configuration.ORIENTATION_LANDSCAPE;
+    }
+
+    @Benchmark
+    public CharSequence loadLabel() {
+        return mApp.loadLabel(mActivity, mPortrait);
+    }
+
+    @Benchmark
+    public CharSequence cachedLabel() {
+        return mCache.getLabel(mActivity, mPortrait);
+    }
+
+    // Every call sees a new configuration and starts from an empty cache.
+    @Benchmark
+    public CharSequence labelAfterConfigurationChange() {
+        mRotated = !mRotated;
+        return mCache.getLabel(mActivity, mRotated ? mLandscape : mPortrait);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic plugins of arbitrary size for tests and benchmarks: the parsed model the load
+ * pipeline would produce, and apps to register with it.
+ */
+public class SyntheticPlugins {
+    /**
+     * Action the last activity of every synthetic plugin can be started with.
+     */
+    public static final String ACTION_OPEN = "org.arpnetwork.synthetic.action.OPEN";
+
+    public static String packageName(int index) {
+        return "org.arpnetwork.synthetic.plugin" + index;
+    }
+
+    public static String activityName(String packageName, int index) {
+        return packageName + ".ui.screen" + index + ".Activity" + index;
+    }
+
+    public static ParsedPackage newParsedPackage(String packageName, int activityCount) {
+        ApplicationInfo ai = new ApplicationInfo();
+        ai.packageName = packageName;
+        ai.nonLocalizedLabel = packageName;
+        ai.theme = 0x7f0f0000;
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        packageInfo.applicationInfo = ai;
+        packageInfo.activities = new ActivityInfo[activityCount];
+
+        Map<String, List<IntentFilter>> intentFilters = new HashMap<>();
+        for (int i = 0; i < activityCount; i++) {
+            ActivityInfo info = new ActivityInfo();
+            info.name = activityName(packageName, i);
+            info.packageName = packageName;
+            info.applicationInfo = ai;
+            info.theme = 0x7f0f0000 + (i % 8);
+            info.labelRes = 0x7f0e0000 + i;
+            info.nonLocalizedLabel = "Activity " + i;
+            packageInfo.activities[i] = info;
+
+            List<IntentFilter> filters = new ArrayList<>();
+            if (i == 0) {
+                IntentFilter filter = new IntentFilter(Intent.ACTION_MAIN);
+                filter.addCategory(Intent.CATEGORY_LAUNCHER);
+                filters.add(filter);
+            }
+            if (i == activityCount - 1) {
+                IntentFilter filter = new IntentFilter(ACTION_OPEN);
+                filter.addCategory(Intent.CATEGORY_DEFAULT);
+                filters.add(filter);
+            }
+            intentFilters.put(info.name, filters);
+        }
+
+        ParsedPackage parsed = new ParsedPackage(packageInfo, null, intentFilters);
+        if (activityCount > 0) {
+            parsed.setLauncherActivity(packageInfo.activities[0]);
+        }
+        parsed.setDigest(ApkDigest.compute(packageName));
+        return parsed;
+    }
+
+    /**
+     * Returns an app with the metadata of {@link #newParsedPackage(String, int)}, ready to be put
+     * into {@link AppManager}. It has no APK, class loader or resources.
+     */
+    public static App newApp(Context context, String packageName, int activityCount) {
+        App app = new App(context, "/synthetic/" + packageName + ".apk");
+        app.setParsedPackage(newParsedPackage(packageName, activityCount));
+        return app;
+    }
+}
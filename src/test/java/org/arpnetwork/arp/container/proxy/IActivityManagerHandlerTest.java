@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.proxy;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+
+import org.arpnetwork.arp.container.App;
+import org.arpnetwork.arp.container.AppActivity;
+import org.arpnetwork.arp.container.AppManager;
+import org.arpnetwork.arp.container.Hook;
+import org.arpnetwork.arp.container.SyntheticPlugins;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class IActivityManagerHandlerTest {
+    private static final int ACTIVITY_COUNT = 3;
+
+    // (..., Intent intent, String resolvedType, ...) as in IActivityManager.
+    public interface FakeActivityManager {
+        int startActivity(Object caller, String callingPackage, Intent intent, String resolvedType);
+    }
+
+    private static class SystemActivityManager implements FakeActivityManager {
+        Intent started;
+
+        @Override
+        public int startActivity(Object caller, String callingPackage, Intent intent, String resolvedType) {
+            started = intent;
+            return 0;
+        }
+    }
+
+    private Context mContext;
+    private App mApp;
+    private SystemActivityManager mSystem;
+    private FakeActivityManager mActivityManager;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mApp = SyntheticPlugins.newApp(mContext, SyntheticPlugins.packageName(0), ACTIVITY_COUNT);
+        AppManager.put(mApp);
+
+        mSystem = new SystemActivityManager();
+        mActivityManager = (FakeActivityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{FakeActivityManager.class},
+                new IActivityManagerHandler(mContext, mSystem, FakeActivityManager.class));
+    }
+
+    @After
+    public void tearDown() {
+        AppManager.remove(mApp);
+    }
+
+    @Test
+    public void startsPluginThroughImplicitIntent() {
+        String packageName = mApp.getPackageName();
+        Intent intent = new Intent(SyntheticPlugins.ACTION_OPEN).setPackage(packageName);
+        mActivityManager.startActivity(null, mContext.getPackageName(), intent, null);
+
+        // The system gets the stub the host declares.
+        Intent stub = mSystem.started;
+        assertEquals(new ComponentName(mContext.getPackageName(), AppActivity.class.getCanonicalName()),
+                stub.getComponent());
+
+        // The activity gets the caller's intent, made explicit.
+        Intent target = PendingLaunches.take(stub.getLongExtra(Hook.EXTRA_TARGET_TOKEN, PendingLaunches.NO_TOKEN));
+        assertNotNull(target);
+        assertEquals(SyntheticPlugins.activityName(packageName, ACTIVITY_COUNT - 1),
+                target.getComponent().getClassName());
+        assertEquals(SyntheticPlugins.ACTION_OPEN, target.getAction());
+    }
+
+    @Test
+    public void leavesHostImplicitIntentToSystem() {
+        // Even though the plugin has a matching filter, the host didn't ask for the plugin.
+        Intent intent = new Intent(SyntheticPlugins.ACTION_OPEN);
+        mActivityManager.startActivity(null, mContext.getPackageName(), intent, null);
+
+        assertSame(intent, mSystem.started);
+    }
+}
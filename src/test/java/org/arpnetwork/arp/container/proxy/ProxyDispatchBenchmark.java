@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.arp.container.proxy;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+
+import org.arpnetwork.arp.container.App;
+import org.arpnetwork.arp.container.AppManager;
+import org.arpnetwork.arp.container.Hook;
+import org.arpnetwork.arp.container.SyntheticPlugins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the IActivityManager and IPackageManager proxies for plugin, host and passed-through
+ * calls, with one or many synthetic apps registered. The handlers are the real ones; only the
+ * binder interfaces they wrap are fakes with the same argument layout as the framework's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyDispatchBenchmark {
+    private static final int ACTIVITY_COUNT = 50;
+
+    // IActivityManager
+    public interface FakeActivityManager {
+        int startActivity(Object caller, String callingPackage, Intent intent, String resolvedType,
+                Object resultTo, String resultWho, int requestCode, int flags, Object profilerInfo,
+                Bundle options);
+
+        int getTaskForActivity(Object token, boolean onlyRoot);
+    }
+
+    // IPackageManager
+    public interface FakePackageManager {
+        ActivityInfo getActivityInfo(ComponentName className, int flags, int userId);
+
+        PackageInfo getPackageInfo(String packageName, int flags, int userId);
+
+        ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags, int userId);
+
+        int checkPermission(String permName, String pkgName, int userId);
+    }
+
+    private static class SystemActivityManager implements FakeActivityManager {
+        @Override
+        public int startActivity(Object caller, String callingPackage, Intent intent, String resolvedType,
+                Object resultTo, String resultWho, int requestCode, int flags, Object profilerInfo,
+                Bundle options) {
+            // What LAUNCH_ACTIVITY does with a plugin launch, so pending launches don't pile up.
+            long token = intent.getLongExtra(Hook.EXTRA_TARGET_TOKEN, PendingLaunches.NO_TOKEN);
+            if (token != PendingLaunches.NO_TOKEN) {
+                PendingLaunches.take(token);
+            }
+            return 0;
+        }
+
+        @Override
+        public int getTaskForActivity(Object token, boolean onlyRoot) {
+            return 0;
+        }
+    }
+
+    private static class SystemPackageManager implements FakePackageManager {
+        @Override
+        public ActivityInfo getActivityInfo(ComponentName className, int flags, int userId) {
+            return null;
+        }
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
+            return null;
+        }
+
+        @Override
+        public ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags, int userId) {
+            return null;
+        }
+
+        @Override
+        public int checkPermission(String permName, String pkgName, int userId) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+    }
+
+    @Param({"1", "20"})
+    public int appCount;
+
+    private List<App> mApps = new ArrayList<>();
+    private FakeActivityManager mActivityManager;
+    private FakePackageManager mPackageManager;
+
+    private Intent mPluginIntent;
+    private Intent mHostIntent;
+    private Intent mImplicitIntent;
+    private Intent mScopedImplicitIntent;
+    private Intent mLauncherIntent;
+    private ComponentName mPluginComponent;
+    private String mPluginPackage;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < appCount; i++) {
+            App app = SyntheticPlugins.newApp(RuntimeEnvironment.application, SyntheticPlugins.packageName(i),
+                    ACTIVITY_COUNT);
+            AppManager.put(app);
+            mApps.add(app);
+        }
+
+        mActivityManager = (FakeActivityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{FakeActivityManager.class},
+                new IActivityManagerHandler(RuntimeEnvironment.application, new SystemActivityManager(),
+                        FakeActivityManager.class));
+        mPackageManager = (FakePackageManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{FakePackageManager.class},
+                new IPackageManagerHandler(new SystemPackageManager(), FakePackageManager.class));
+
+        // The last registered app, the deepest activity.
+        mPluginPackage = SyntheticPlugins.packageName(appCount - 1);
+        mPluginComponent = new ComponentName(mPluginPackage,
+                SyntheticPlugins.activityName(mPluginPackage, ACTIVITY_COUNT - 1));
+        mPluginIntent = new Intent().setComponent(mPluginComponent);
+        mHostIntent = new Intent().setComponent(new ComponentName("org.arpnetwork.host",
+                "org.arpnetwork.host.MainActivity"));
+        // A host intent, left to the system.
+        mImplicitIntent = new Intent(Intent.ACTION_SEND).setType("text/plain");
+        mScopedImplicitIntent = new Intent(SyntheticPlugins.ACTION_OPEN).setPackage(mPluginPackage);
+        mLauncherIntent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER)
+                .setPackage(mPluginPackage);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (App app : mApps) {
+            AppManager.remove(app);
+        }
+        mApps.clear();
+    }
+
+    @Benchmark
+    public int startPluginActivity() {
+        return mActivityManager.startActivity(null, null, mPluginIntent, null, null, null, -1, 0, null, null);
+    }
+
+    @Benchmark
+    public int startHostActivity() {
+        return mActivityManager.startActivity(null, null, mHostIntent, null, null, null, -1, 0, null, null);
+    }
+
+    @Benchmark
+    public int startImplicit() {
+        return mActivityManager.startActivity(null, null, mImplicitIntent, "text/plain", null, null, -1, 0,
+                null, null);
+    }
+
+    @Benchmark
+    public int startScopedImplicit() {
+        return mActivityManager.startActivity(null, null, mScopedImplicitIntent, null, null, null, -1, 0,
+                null, null);
+    }
+
+    @Benchmark
+    public int activityManagerPassThrough() {
+        return mActivityManager.getTaskForActivity(null, false);
+    }
+
+    @Benchmark
+    public ActivityInfo getActivityInfo() {
+        return mPackageManager.getActivityInfo(mPluginComponent, 0, 0);
+    }
+
+    @Benchmark
+    public PackageInfo getPackageInfo() {
+        return mPackageManager.getPackageInfo(mPluginPackage, PackageManager.GET_ACTIVITIES, 0);
+    }
+
+    @Benchmark
+    public ResolveInfo resolveLauncher() {
+        return mPackageManager.resolveIntent(mLauncherIntent, null, 0, 0);
+    }
+
+    @Benchmark
+    public int packageManagerPassThrough() {
+        return mPackageManager.checkPermission("android.permission.INTERNET", "org.arpnetwork.host", 0);
+    }
+}